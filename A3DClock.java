@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Monotonic nanosecond clock shared by touch timestamps, frame
+ * timing and pacing. UTC timestamps are derived from a cached
+ * offset which is only refreshed by Resync so that wall clock
+ * adjustments do not cause jumps between events.
+ *
+ * Override Now, Wall, Sleep and Yield to run against a
+ * simulated clock.
+ */
+public class A3DClock
+{
+	private static final A3DClock Default = new A3DClock();
+
+	// UTC nanoseconds minus monotonic nanoseconds
+	private volatile long    Utc_Offset = 0;
+	private volatile boolean Utc_Valid  = false;
+
+	public A3DClock()
+	{
+	}
+
+	public static A3DClock GetDefault()
+	{
+		return Default;
+	}
+
+	// monotonic time in nanoseconds
+	public long Now()
+	{
+		return System.nanoTime();
+	}
+
+	// UTC time in nanoseconds
+	protected long Wall()
+	{
+		return System.currentTimeMillis()*1000000L;
+	}
+
+	/*
+	 * Converts a MotionEvent timestamp to clock nanoseconds.
+	 * The uptime clock and System.nanoTime are both based on
+	 * CLOCK_MONOTONIC on Android.
+	 */
+	public long Uptime(long uptime_ms)
+	{
+		return uptime_ms*1000000L;
+	}
+
+	public void Resync()
+	{
+		Utc_Offset = Wall() - Now();
+		Utc_Valid  = true;
+	}
+
+	// UTC time in seconds for a clock timestamp
+	public double ToUTC(long nanos)
+	{
+		if(Utc_Valid == false)
+		{
+			Resync();
+		}
+		return (double) (nanos + Utc_Offset)/1000000000.0;
+	}
+
+	// may return early if the thread is unparked
+	public void Sleep(long nanos)
+	{
+		LockSupport.parkNanos(nanos);
+	}
+
+	public void Yield()
+	{
+		Thread.yield();
+	}
+}
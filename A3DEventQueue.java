@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded multi-producer/single-consumer queue of event types.
+ * Each slot has a sequence number which producers claim with
+ * a CAS on the tail and which the consumer releases after the
+ * event is read, so neither side takes a lock.
+ */
+class A3DEventQueue
+{
+	public static final int NONE = -1;
+
+	private final int             Mask;
+	private final int[]           Events;
+	private final AtomicLongArray Sequence;
+	private final AtomicLong      Tail = new AtomicLong(0);
+
+	// consumer only
+	private long Head = 0;
+
+	A3DEventQueue(int capacity)
+	{
+		// round capacity up to a power of two
+		int size = 1;
+		while(size < capacity)
+		{
+			size <<= 1;
+		}
+
+		Mask     = size - 1;
+		Events   = new int[size];
+		Sequence = new AtomicLongArray(size);
+		for(int i = 0; i < size; ++i)
+		{
+			Sequence.set(i, i);
+		}
+	}
+
+	/*
+	 * Returns the position of the event in the queue which
+	 * may be compared with Handled or -1 if the queue is full.
+	 */
+	public long Offer(int event)
+	{
+		while(true)
+		{
+			long pos = Tail.get();
+			int  idx = (int) (pos & Mask);
+			long dif = Sequence.get(idx) - pos;
+			if(dif == 0)
+			{
+				if(Tail.compareAndSet(pos, pos + 1))
+				{
+					Events[idx] = event;
+
+					// publish the event to the consumer
+					Sequence.set(idx, pos + 1);
+					return pos;
+				}
+			}
+			else if(dif < 0)
+			{
+				return -1;
+			}
+		}
+	}
+
+	public int Poll()
+	{
+		int idx = (int) (Head & Mask);
+		if(Sequence.get(idx) != Head + 1)
+		{
+			return NONE;
+		}
+
+		int event = Events[idx];
+
+		// release the slot to the producers
+		Sequence.set(idx, Head + Mask + 1);
+		++Head;
+		return event;
+	}
+
+	/*
+	 * Returns true if the event at pos has been published
+	 * but not yet received by the consumer.
+	 */
+	public boolean IsPending(long pos)
+	{
+		return Sequence.get((int) (pos & Mask)) == pos + 1;
+	}
+
+	public long Tail()
+	{
+		return Tail.get();
+	}
+
+	public long Head()
+	{
+		return Head;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+/*
+ * Schedules frames at a target rate and drops to an idle rate
+ * when there has been no input for the idle timeout. A rate of
+ * 0 disables pacing.
+ *
+ * The render thread calls Delay until it returns 0, calling
+ * Wait in between, and then calls Frame before drawing. Wait
+ * may return early so that events are not delayed by pacing.
+ */
+class A3DFramePacer
+{
+	// sleep until the deadline is this close and then yield
+	private static final long SPIN_NS = 1000000L;
+
+	private final A3DClock Clock;
+
+	private volatile long Target_Interval = 0;
+	private volatile long Idle_Interval   = 0;
+	private volatile long Idle_Timeout    = 0;
+	private volatile long Last_Input;
+
+	// render thread only
+	private long    Last_Frame = 0;
+	private boolean Started    = false;
+
+	A3DFramePacer(A3DClock clock)
+	{
+		Clock      = clock;
+		Last_Input = clock.Now();
+	}
+
+	private static long Interval(float fps)
+	{
+		return (fps > 0.0f) ? (long) (1000000000.0/fps) : 0;
+	}
+
+	public void SetTargetFps(float fps)
+	{
+		Target_Interval = Interval(fps);
+	}
+
+	public void SetIdleFps(float fps, float timeout)
+	{
+		Idle_Interval = Interval(fps);
+		Idle_Timeout  = (long) (1000000000.0*timeout);
+	}
+
+	public boolean IsEnabled()
+	{
+		return (Target_Interval > 0) || (Idle_Interval > 0);
+	}
+
+	public boolean IsIdle(long now)
+	{
+		return (Idle_Interval > 0) && (now - Last_Input >= Idle_Timeout);
+	}
+
+	// any thread
+	public void Input()
+	{
+		Last_Input = Clock.Now();
+	}
+
+	private long Interval(long now)
+	{
+		return IsIdle(now) ? Idle_Interval : Target_Interval;
+	}
+
+	// nanoseconds until the next frame is due
+	public long Delay()
+	{
+		if(!Started) return 0;
+
+		long now   = Clock.Now();
+		long delay = Last_Frame + Interval(now) - now;
+		return (delay > 0) ? delay : 0;
+	}
+
+	public void Wait()
+	{
+		long delay = Delay();
+		if(delay > SPIN_NS)
+		{
+			Clock.Sleep(delay - SPIN_NS);
+		}
+		else if(delay > 0)
+		{
+			Clock.Yield();
+		}
+	}
+
+	public void Frame()
+	{
+		long now      = Clock.Now();
+		long interval = Interval(now);
+		long deadline = Last_Frame + interval;
+
+		// keep the cadence unless a whole frame was missed
+		if(Started && (now - deadline < interval))
+		{
+			Last_Frame = deadline;
+		}
+		else
+		{
+			Last_Frame = now;
+		}
+		Started = true;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import android.util.Log;
+import android.opengl.GLES20;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/*
+ * Worker thread with a loader context in the share group of
+ * the render context. Submitted jobs run with the loader
+ * context current on a 1x1 pbuffer and their Future completes
+ * after glFinish so that the uploaded objects are complete
+ * before the render thread uses them.
+ */
+class A3DLoader implements Runnable
+{
+	private static final String TAG = "A3DLoader";
+
+	private EGL10      egl;
+	private EGLDisplay Gfx_Display;
+	private EGLConfig  Gfx_Config;
+	private EGLContext Share_Context;
+	private int        Client_Version;
+	private boolean    No_Error;
+
+	// owned by the loader thread
+	private EGLContext Loader_Context = EGL10.EGL_NO_CONTEXT;
+	private EGLSurface Loader_Surface = EGL10.EGL_NO_SURFACE;
+
+	private Thread Loader_Thread;
+	private volatile boolean Stopping = false;
+	private LinkedBlockingQueue<FutureTask<Void>> Jobs = new LinkedBlockingQueue<FutureTask<Void>>();
+
+	// queued to stop the loader thread
+	private final FutureTask<Void> Stop_Job = new FutureTask<Void>(new Runnable()
+	{
+		public void run()
+		{
+		}
+	}, null);
+
+	A3DLoader(EGL10 egl, EGLDisplay display, EGLConfig config,
+	          EGLContext share_context, int client_version,
+	          boolean no_error)
+	{
+		this.egl       = egl;
+		Gfx_Display    = display;
+		Gfx_Config     = config;
+		Share_Context  = share_context;
+		Client_Version = client_version;
+		No_Error       = no_error;
+
+		Loader_Thread = new Thread(this, TAG);
+		Loader_Thread.start();
+	}
+
+	public Future<Void> Submit(final Runnable job)
+	{
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				if(Loader_Context == EGL10.EGL_NO_CONTEXT)
+				{
+					throw new IllegalStateException("no loader context");
+				}
+
+				job.run();
+				GLES20.glFinish();
+				return null;
+			}
+		});
+
+		// Stop sets Stopping before it drains the queue so a
+		// task added after the drain sees Stopping here. Cancel
+		// has no effect on a task which already completed.
+		Jobs.add(task);
+		if(Stopping)
+		{
+			task.cancel(false);
+		}
+		return task;
+	}
+
+	public void Stop()
+	{
+		// Pending jobs are cancelled and the context is
+		// destroyed before Stop returns
+		Stopping = true;
+		Jobs.add(Stop_Job);
+
+		boolean interrupted = false;
+		while(true)
+		{
+			try
+			{
+				Loader_Thread.join();
+				break;
+			}
+			catch(InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+
+		ArrayList<FutureTask<Void>> pending = new ArrayList<FutureTask<Void>>();
+		Jobs.drainTo(pending);
+		for(int i = 0; i < pending.size(); ++i)
+		{
+			pending.get(i).cancel(false);
+		}
+	}
+
+	public void run()
+	{
+		CreateContext();
+
+		while(true)
+		{
+			FutureTask<Void> task;
+			try
+			{
+				task = Jobs.take();
+			}
+			catch(InterruptedException e)
+			{
+				continue;
+			}
+
+			if(task == Stop_Job) break;
+
+			if(Stopping)
+			{
+				task.cancel(false);
+			}
+			else
+			{
+				task.run();
+			}
+		}
+
+		DestroyContext();
+	}
+
+	private EGLConfig ChooseConfig()
+	{
+		// Prefer the render config so that the contexts are
+		// compatible but it may not support pbuffers
+		int[] value = new int[1];
+		egl.eglGetConfigAttrib(Gfx_Display, Gfx_Config, EGL10.EGL_SURFACE_TYPE, value);
+		if((value[0] & EGL10.EGL_PBUFFER_BIT) != 0)
+		{
+			return Gfx_Config;
+		}
+
+		int[] renderable = new int[1];
+		egl.eglGetConfigAttrib(Gfx_Display, Gfx_Config, EGL10.EGL_RENDERABLE_TYPE, renderable);
+
+		int[] attrib_list =
+		{
+			EGL10.EGL_SURFACE_TYPE,    EGL10.EGL_PBUFFER_BIT,
+			EGL10.EGL_RENDERABLE_TYPE, renderable[0],
+			EGL10.EGL_NONE
+		};
+
+		EGLConfig[] configs    = new EGLConfig[1];
+		int[]       num_config = new int[1];
+		if(!egl.eglChooseConfig(Gfx_Display, attrib_list, configs, 1, num_config) ||
+		   (num_config[0] == 0))
+		{
+			Log.e(TAG, "ChooseConfig - no pbuffer config");
+			return null;
+		}
+		return configs[0];
+	}
+
+	private void CreateContext()
+	{
+		EGLConfig config = ChooseConfig();
+		if(config == null)
+		{
+			return;
+		}
+
+		// the attributes must match the shared context
+		int[] context_attribs;
+		context_attribs = A3DNativeRenderer.ContextAttribs(Client_Version, No_Error);
+
+		EGLContext context;
+		if(Client_Version == 1)
+		{
+			context = egl.eglCreateContext(Gfx_Display, config, Share_Context, null);
+		}
+		else
+		{
+			context = egl.eglCreateContext(Gfx_Display, config, Share_Context, context_attribs);
+		}
+		if(context == EGL10.EGL_NO_CONTEXT)
+		{
+			Log.e(TAG, "CreateContext - eglCreateContext failed 0x" + Integer.toHexString(egl.eglGetError()));
+			return;
+		}
+
+		int[] surface_attribs =
+		{
+			EGL10.EGL_WIDTH,  1,
+			EGL10.EGL_HEIGHT, 1,
+			EGL10.EGL_NONE
+		};
+
+		EGLSurface surface = egl.eglCreatePbufferSurface(Gfx_Display, config, surface_attribs);
+		if(surface == EGL10.EGL_NO_SURFACE)
+		{
+			Log.e(TAG, "CreateContext - eglCreatePbufferSurface failed 0x" + Integer.toHexString(egl.eglGetError()));
+			egl.eglDestroyContext(Gfx_Display, context);
+			return;
+		}
+
+		if(!egl.eglMakeCurrent(Gfx_Display, surface, surface, context))
+		{
+			Log.e(TAG, "CreateContext - eglMakeCurrent failed 0x" + Integer.toHexString(egl.eglGetError()));
+			egl.eglDestroySurface(Gfx_Display, surface);
+			egl.eglDestroyContext(Gfx_Display, context);
+			return;
+		}
+
+		Loader_Surface = surface;
+		Loader_Context = context;
+	}
+
+	private void DestroyContext()
+	{
+		if(Loader_Context == EGL10.EGL_NO_CONTEXT)
+		{
+			return;
+		}
+
+		if(!egl.eglMakeCurrent(Gfx_Display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT))
+		{
+			Log.e(TAG, "DestroyContext - eglMakeCurrent failed");
+		}
+
+		if(!egl.eglDestroySurface(Gfx_Display, Loader_Surface))
+		{
+			Log.e(TAG, "DestroyContext - eglDestroySurface failed");
+		}
+
+		if(!egl.eglDestroyContext(Gfx_Display, Loader_Context))
+		{
+			Log.e(TAG, "DestroyContext - eglDestroyContext failed");
+		}
+
+		Loader_Surface = EGL10.EGL_NO_SURFACE;
+		Loader_Context = EGL10.EGL_NO_CONTEXT;
+	}
+}
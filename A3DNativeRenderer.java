@@ -28,9 +28,11 @@ import android.util.DisplayMetrics;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.res.Resources;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.nio.FloatBuffer;
@@ -49,12 +51,13 @@ public class A3DNativeRenderer implements A3DRenderer
 {
 	private static final String TAG = "A3DNativeRenderer";
 
-	// timer stuff
+	// timer stuff (nanoseconds)
+	private A3DClock Clock;
 	private long Prev_Draw = 0;
 	private long Total_Draw = 0;
 	private long Prev_eglSwapBuffers = 0;
 	private long Total_eglSwapBuffers = 0;
-	private long T0 = System.currentTimeMillis();
+	private long T0;
 
 	// OpenGL ES State
 	private EGL10 egl;
@@ -63,6 +66,31 @@ public class A3DNativeRenderer implements A3DRenderer
 	private EGLConfig  Gfx_Config;
 	private EGLContext Gfx_Context = EGL10.EGL_NO_CONTEXT;
 	private boolean    Gfx_Context_Lost = false;
+	private int        Client_Version   = 0;
+
+	// Requested config, see SelectConfig
+	private static final String PREFS_NAME = "A3DNativeRenderer";
+	private Context App_Context;
+	private boolean Config_Diagnostics = false;
+	private int     Config_Red;
+	private int     Config_Green;
+	private int     Config_Blue;
+	private int     Config_Alpha;
+	private int     Config_Depth;
+	private int[]   Config_Value = new int[1];
+	private boolean    Has_No_Error     = false;
+
+	// Context loss recovery retries with backoff before falling
+	// back to rebuilding the display and native state. Only
+	// enabled by SetContextRestore since the native library must
+	// implement NativeContextLost and NativeContextRestored.
+	private static final long RESTORE_DELAY_NS    = 16000000L;    // 16ms
+	private static final long RESTORE_MAX_NS      = 1000000000L;  // 1s
+	private static final int  RESTORE_MAX_RETRIES = 6;
+	private int     Restore_Retries = 0;
+	private long    Restore_Time    = 0;
+	private boolean Native_Lost     = false;
+	private volatile boolean Context_Restore = false;
 	private static int EGL_TRUE           = 1;
 	private static int EGL_OPENGL_ES_BIT  = 1;
 	private static int EGL_OPENGL_ES2_BIT = 4;
@@ -70,9 +98,34 @@ public class A3DNativeRenderer implements A3DRenderer
 	private static int EGL_CONTEXT_CLIENT_VERSION      = 0x3098;
 	private static int EGL_CONTEXT_OPENGL_NO_ERROR_KHR = 0x31B3;
 
+	// Renderers driven by one A3DRenderService may share a
+	// reference counted context. A lost context is replaced for
+	// renderers that acquire it afterwards while existing
+	// references are released as each renderer recovers.
+	private static class A3DSharedContext
+	{
+		public EGLDisplay Display;
+		public EGLConfig  Config;
+		public EGLContext Context;
+		public int        Refs = 1;
+		public boolean    Lost = false;
+	}
+
+	private static final Object     Shared_Lock    = new Object();
+	private static A3DSharedContext Shared_Current = null;
+	private static int              Shared_Refs    = 0;   // all contexts
+
+	private boolean          Share_Context = false;
+	private A3DSharedContext Shared        = null;
+
+	// Optional loader context and upload thread
+	private volatile boolean Use_Loader = false;
+	private volatile A3DLoader Loader   = null;
+
 	int   Width   = 320;
 	int   Height  = 480;
 	float Density = 1.0F;
+	float Scale   = 1.0F;
 
 	// Reference to the A3DSurfaceView SurfaceHolder
 	private SurfaceHolder Surface_Holder;
@@ -85,6 +138,12 @@ public class A3DNativeRenderer implements A3DRenderer
 	private native void NativeResume();
 	private native void NativePause();
 	private native void NativeDraw();
+
+	// Context loss recovery
+	// NativeContextLost discards GPU handles without deleting them
+	// NativeContextRestored recreates GPU objects in the new context
+	private native void NativeContextLost();
+	private native void NativeContextRestored();
 	private native int  NativeClientVersion();
 	private native int  NativeRed();
 	private native int  NativeGreen();
@@ -118,6 +177,15 @@ public class A3DNativeRenderer implements A3DRenderer
 	// Renderer implementation
 	public A3DNativeRenderer(Context context)
 	{
+		this(context, A3DClock.GetDefault());
+	}
+
+	public A3DNativeRenderer(Context context, A3DClock clock)
+	{
+		Clock       = clock;
+		T0          = clock.Now();
+		App_Context = context;
+
 		DisplayMetrics metrics = new DisplayMetrics();
 		WindowManager  wm      = (WindowManager)
 		                         context.getSystemService(Context.WINDOW_SERVICE);
@@ -125,6 +193,48 @@ public class A3DNativeRenderer implements A3DRenderer
 		Density = metrics.density;
 	}
 
+	public void SetConfigDiagnostics(boolean diagnostics)
+	{
+		// Log every EGL config in CreateContext
+		Config_Diagnostics = diagnostics;
+	}
+
+	public void SetSharedContext(boolean share)
+	{
+		// Must be set before CreateContext
+		Share_Context = share;
+	}
+
+	public void SetLoader(boolean loader)
+	{
+		// Must be set before CreateContext
+		Use_Loader = loader;
+	}
+
+	public void SetContextRestore(boolean restore)
+	{
+		// Recreate only the context after a context loss and use
+		// NativeContextLost/NativeContextRestored rather than
+		// NativeDestroy/NativeCreate
+		Context_Restore = restore;
+	}
+
+	/*
+	 * Runs job on the upload thread with a context in the
+	 * share group of the render context. The Future completes
+	 * once the GL commands issued by job have finished. Returns
+	 * null when there is no loader.
+	 */
+	public Future<Void> SubmitUpload(Runnable job)
+	{
+		A3DLoader loader = Loader;
+		if(loader == null)
+		{
+			return null;
+		}
+		return loader.Submit(job);
+	}
+
 	public void CreateContext()
 	{
 		if(Gfx_Context != EGL10.EGL_NO_CONTEXT)
@@ -132,8 +242,57 @@ public class A3DNativeRenderer implements A3DRenderer
 			return;
 		}
 
-		int[] version    = new int[2];
-		int[] num_config = new int[1];
+		CreateShared();
+		if(Use_Loader && (Gfx_Context != EGL10.EGL_NO_CONTEXT))
+		{
+			Loader = new A3DLoader(egl, Gfx_Display, Gfx_Config,
+			                       Gfx_Context, NativeClientVersion(),
+			                       Has_No_Error);
+		}
+	}
+
+	private void CreateShared()
+	{
+		if(Share_Context == false)
+		{
+			NewContext();
+			return;
+		}
+
+		synchronized(Shared_Lock)
+		{
+			A3DSharedContext shared = Shared_Current;
+			if((shared != null) && (shared.Lost == false))
+			{
+				egl         = (EGL10) EGLContext.getEGL();
+				Gfx_Display = shared.Display;
+				Gfx_Config  = shared.Config;
+				Gfx_Context = shared.Context;
+				++shared.Refs;
+				++Shared_Refs;
+				Shared = shared;
+				return;
+			}
+
+			NewContext();
+			if(Gfx_Context == EGL10.EGL_NO_CONTEXT)
+			{
+				return;
+			}
+
+			shared         = new A3DSharedContext();
+			shared.Display = Gfx_Display;
+			shared.Config  = Gfx_Config;
+			shared.Context = Gfx_Context;
+			++Shared_Refs;
+			Shared_Current = shared;
+			Shared         = shared;
+		}
+	}
+
+	private void NewContext()
+	{
+		int[] version = new int[2];
 
 		int client_version = NativeClientVersion();
 		int r              = NativeRed();
@@ -159,23 +318,103 @@ public class A3DNativeRenderer implements A3DRenderer
 		CheckEGLError("CreateContext eglInitialize");
 		Log.i(TAG, "EGL version is " + version[0] + "." + version[1]);
 
+		Client_Version = client_version;
+		Config_Red     = r;
+		Config_Green   = g;
+		Config_Blue    = b;
+		Config_Alpha   = a;
+		Config_Depth   = d;
+
+		// Log the available configurations
+		if(Config_Diagnostics)
+		{
+			DumpConfigs();
+		}
+
+		Gfx_Config = SelectConfig();
+		if(Gfx_Config == null)
+		{
+			Log.e(TAG, "CreateContext - Could not select desired EGL config");
+			return;
+		}
+
+		// check for no_error extension
+		Has_No_Error = (client_version >= 2) &&
+		               extensions.contains("EGL_KHR_create_context_no_error");
+		if(Has_No_Error)
+		{
+			Log.i(TAG, "EGL_CONTEXT_OPENGL_NO_ERROR_KHR=TRUE");
+		}
+
+		Gfx_Context = NewEGLContext();
+		CheckEGLError("CreateContext eglCreateContext");
+		if(Gfx_Context == EGL10.EGL_NO_CONTEXT)
+		{
+			Log.e(TAG, "CreateContext - eglCreateContext failed");
+			return;
+		}
+	}
+
+	private EGLContext NewEGLContext()
+	{
+		int client_version = Client_Version;
+		if(client_version == 1)
+		{
+			return egl.eglCreateContext(Gfx_Display, Gfx_Config, EGL10.EGL_NO_CONTEXT, null);
+		}
+		else if((client_version == 2) || (client_version == 3))
+		{
+			int[] attrib_list = ContextAttribs(client_version, Has_No_Error);
+			return egl.eglCreateContext(Gfx_Display, Gfx_Config, EGL10.EGL_NO_CONTEXT, attrib_list);
+		}
+		return EGL10.EGL_NO_CONTEXT;
+	}
+
+	/*
+	 * The context attributes for client versions 2 and 3. Shared
+	 * contexts must agree on EGL_CONTEXT_OPENGL_NO_ERROR_KHR or
+	 * eglCreateContext fails with EGL_BAD_MATCH.
+	 */
+	static int[] ContextAttribs(int client_version, boolean no_error)
+	{
+		if(no_error)
+		{
+			int[] attrib_list =
+			{
+				EGL_CONTEXT_CLIENT_VERSION, client_version,
+				EGL_CONTEXT_OPENGL_NO_ERROR_KHR, EGL_TRUE,
+				EGL10.EGL_NONE
+			};
+			return attrib_list;
+		}
+
+		int[] attrib_list =
+		{
+			EGL_CONTEXT_CLIENT_VERSION, client_version,
+			EGL10.EGL_NONE
+		};
+		return attrib_list;
+	}
+
+	private void DumpConfigs()
+	{
+		int[] num_config = new int[1];
+
 		// Querry the configurations
 		if(!egl.eglGetConfigs(Gfx_Display, null, 0, num_config))
 		{
-			Log.e(TAG, "CreateContext - eglGetConfigs could not determine number of configs");
+			Log.e(TAG, "DumpConfigs - eglGetConfigs could not determine number of configs");
 			return;
 		}
-		CheckEGLError("CreateContext eglGetConfigs1");
+		CheckEGLError("DumpConfigs eglGetConfigs1");
 
 		EGLConfig[] configs = new EGLConfig[num_config[0]];
 		if(!egl.eglGetConfigs(Gfx_Display, configs, num_config[0], num_config))
 		{
-			Log.e(TAG, "CreateContext - eglGetConfigs could not determine number of configs");
+			Log.e(TAG, "DumpConfigs - eglGetConfigs could not determine number of configs");
 			return;
 		}
-		CheckEGLError("CreateContext eglGetConfigs2");
-
-		Gfx_Config = null;
+		CheckEGLError("DumpConfigs eglGetConfigs2");
 
 		// Log the available configurations
 		int[] color_buf_type  = new int[1];
@@ -191,7 +430,6 @@ public class A3DNativeRenderer implements A3DRenderer
 		int[] samples         = new int[1];
 		int[] id              = new int[1];
 		int[] caveat          = new int[1];
-		int selected = -1;
 		for(int i = 0; i < num_config[0]; ++i)
 		{
 			egl.eglGetConfigAttrib(Gfx_Display, configs[i], EGL10.EGL_COLOR_BUFFER_TYPE, color_buf_type);
@@ -207,91 +445,162 @@ public class A3DNativeRenderer implements A3DRenderer
 			egl.eglGetConfigAttrib(Gfx_Display, configs[i], EGL10.EGL_SAMPLES, samples);
 			egl.eglGetConfigAttrib(Gfx_Display, configs[i], EGL10.EGL_CONFIG_ID, id);
 			egl.eglGetConfigAttrib(Gfx_Display, configs[i], EGL10.EGL_CONFIG_CAVEAT, caveat);
-			CheckEGLError("CreateContext eglGetConfigAttrib");
+			CheckEGLError("DumpConfigs eglGetConfigAttrib");
 
 			Log.i(TAG, i + ": id=" + id[0] +
 			               " rgbads=" + red[0] + "," + green[0] + "," + blue[0] + "," + alpha[0] + "," + depth[0] + "," + stencil[0] +
 			               " type=" + color_buf_type[0] + "," + surface_type[0] + "," + renderable_type[0] + "," + caveat[0] +
 			               " msaa=" + sample_buffers[0] + "," + samples[0]);
+		}
+	}
 
-			// Manually choose a configuration
-			if((surface_type[0]   &  EGL10.EGL_WINDOW_BIT) == 0) continue;   // exact
-			if(red[0]            != r) continue;   // exact
-			if(green[0]          != g) continue;   // exact
-			if(blue[0]           != b) continue;   // exact
-			if(alpha[0]          != a) continue;   // exact
-			if(depth[0]          <  d) continue;
-			if(stencil[0]        <  0) continue;
-			if(sample_buffers[0] != 0) continue;   // exact
-			if(samples[0]        <  0) continue;
-			if(client_version == 1)
-			{
-				if((renderable_type[0] & EGL_OPENGL_ES_BIT) == 0) continue;   // exact
-			}
-			else if(client_version == 2)
-			{
-				if((renderable_type[0] & EGL_OPENGL_ES2_BIT) == 0) continue;   // exact
-			}
-			else if(client_version == 3)
-			{
-				if((renderable_type[0] & EGL_OPENGL_ES3_BIT) == 0) continue;   // exact
-			}
+	private int GetConfigAttrib(EGLConfig config, int attribute)
+	{
+		int[] value = Config_Value;
+		value[0] = 0;
+		egl.eglGetConfigAttrib(Gfx_Display, config, attribute, value);
+		return value[0];
+	}
+
+	private boolean AcceptConfig(EGLConfig config)
+	{
+		if((GetConfigAttrib(config, EGL10.EGL_SURFACE_TYPE) & EGL10.EGL_WINDOW_BIT) == 0) return false;   // exact
+		if(GetConfigAttrib(config, EGL10.EGL_RED_SIZE)       != Config_Red)   return false;   // exact
+		if(GetConfigAttrib(config, EGL10.EGL_GREEN_SIZE)     != Config_Green) return false;   // exact
+		if(GetConfigAttrib(config, EGL10.EGL_BLUE_SIZE)      != Config_Blue)  return false;   // exact
+		if(GetConfigAttrib(config, EGL10.EGL_ALPHA_SIZE)     != Config_Alpha) return false;   // exact
+		if(GetConfigAttrib(config, EGL10.EGL_DEPTH_SIZE)     <  Config_Depth) return false;
+		if(GetConfigAttrib(config, EGL10.EGL_SAMPLE_BUFFERS) != 0)            return false;   // exact
+
+		int renderable = GetConfigAttrib(config, EGL10.EGL_RENDERABLE_TYPE);
+		return (renderable & RenderableBit()) != 0;   // exact
+	}
 
-			// Just take the first accepted config (for now ...)
-			if(selected < 0)
+	private int ScoreConfig(EGLConfig config)
+	{
+		// Lower is better: avoid caveats, then prefer the least
+		// depth, stencil and samples beyond the request
+		int score = 0;
+		if(GetConfigAttrib(config, EGL10.EGL_CONFIG_CAVEAT) != EGL10.EGL_NONE)
+		{
+			score += 10000;
+		}
+		score += 100*(GetConfigAttrib(config, EGL10.EGL_DEPTH_SIZE) - Config_Depth);
+		score += 10*GetConfigAttrib(config, EGL10.EGL_STENCIL_SIZE);
+		score += GetConfigAttrib(config, EGL10.EGL_SAMPLES);
+		return score;
+	}
+
+	private int RenderableBit()
+	{
+		if(Client_Version == 2)      return EGL_OPENGL_ES2_BIT;
+		else if(Client_Version == 3) return EGL_OPENGL_ES3_BIT;
+		return EGL_OPENGL_ES_BIT;
+	}
+
+	private EGLConfig BestConfig(EGLConfig[] configs, int count)
+	{
+		EGLConfig best       = null;
+		int       best_score = Integer.MAX_VALUE;
+		for(int i = 0; i < count; ++i)
+		{
+			if(!AcceptConfig(configs[i])) continue;
+
+			int score = ScoreConfig(configs[i]);
+			if(score < best_score)
 			{
-				selected = id[0];
-				Gfx_Config = configs[i];
+				best       = configs[i];
+				best_score = score;
 			}
 		}
+		return best;
+	}
 
-		if(Gfx_Config == null)
+	private EGLConfig ChooseConfig()
+	{
+		int[] attrib_list =
 		{
-			Log.e(TAG, "CreateContext - Could not select desired EGL config in " + num_config[0] + " configs");
-			return;
+			EGL10.EGL_RED_SIZE,        Config_Red,
+			EGL10.EGL_GREEN_SIZE,      Config_Green,
+			EGL10.EGL_BLUE_SIZE,       Config_Blue,
+			EGL10.EGL_ALPHA_SIZE,      Config_Alpha,
+			EGL10.EGL_DEPTH_SIZE,      Config_Depth,
+			EGL10.EGL_SAMPLE_BUFFERS,  0,
+			EGL10.EGL_SURFACE_TYPE,    EGL10.EGL_WINDOW_BIT,
+			EGL10.EGL_RENDERABLE_TYPE, RenderableBit(),
+			EGL10.EGL_NONE
+		};
+
+		// eglChooseConfig only returns candidates so the exact
+		// requirements are checked while scoring
+		int[] num_config = new int[1];
+		if(egl.eglChooseConfig(Gfx_Display, attrib_list, null, 0, num_config) &&
+		   (num_config[0] > 0))
+		{
+			EGLConfig[] configs = new EGLConfig[num_config[0]];
+			if(egl.eglChooseConfig(Gfx_Display, attrib_list, configs, num_config[0], num_config))
+			{
+				EGLConfig config = BestConfig(configs, num_config[0]);
+				if(config != null) return config;
+			}
 		}
-		else
+		CheckEGLError("ChooseConfig eglChooseConfig");
+
+		// Some drivers reject EGL_OPENGL_ES3_BIT so fall back
+		// to scoring every config
+		Log.i(TAG, "ChooseConfig - eglChooseConfig failed, scoring all configs");
+		if(!egl.eglGetConfigs(Gfx_Display, null, 0, num_config))
 		{
-			Log.i(TAG, "CreateContext - Using config " + selected);
+			Log.e(TAG, "ChooseConfig - eglGetConfigs could not determine number of configs");
+			return null;
 		}
 
-		if(client_version == 1)
+		EGLConfig[] configs = new EGLConfig[num_config[0]];
+		if(!egl.eglGetConfigs(Gfx_Display, configs, num_config[0], num_config))
 		{
-			Gfx_Context = egl.eglCreateContext(Gfx_Display, Gfx_Config, EGL10.EGL_NO_CONTEXT, null);
+			Log.e(TAG, "ChooseConfig - eglGetConfigs failed");
+			return null;
 		}
-		else if((client_version == 2) || (client_version == 3))
+		return BestConfig(configs, num_config[0]);
+	}
+
+	private EGLConfig SelectConfig()
+	{
+		// The selected EGL_CONFIG_ID is cached for later launches
+		// and is validated since drivers may change
+		String key = "config-" + Client_Version + "-" +
+		             Config_Red + Config_Green + Config_Blue + Config_Alpha + "-" +
+		             Config_Depth;
+		SharedPreferences prefs = App_Context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+		int cached = prefs.getInt(key, -1);
+		if(cached >= 0)
 		{
-			// check for no_error extension
-			boolean has_no_error = extensions.contains("EGL_KHR_create_context_no_error");
-			if(has_no_error)
+			int[] attrib_list =
 			{
-				Log.i(TAG, "EGL_CONTEXT_OPENGL_NO_ERROR_KHR=TRUE");
-				int[] attrib_list =
-				{
-					EGL_CONTEXT_CLIENT_VERSION, client_version,
-					EGL_CONTEXT_OPENGL_NO_ERROR_KHR, EGL_TRUE,
-					EGL10.EGL_NONE
-				};
-
-				Gfx_Context = egl.eglCreateContext(Gfx_Display, Gfx_Config, EGL10.EGL_NO_CONTEXT, attrib_list);
-			}
-			else
+				EGL10.EGL_CONFIG_ID, cached,
+				EGL10.EGL_NONE
+			};
+
+			EGLConfig[] configs    = new EGLConfig[1];
+			int[]       num_config = new int[1];
+			if(egl.eglChooseConfig(Gfx_Display, attrib_list, configs, 1, num_config) &&
+			   (num_config[0] == 1) && AcceptConfig(configs[0]))
 			{
-				int[] attrib_list =
-				{
-					EGL_CONTEXT_CLIENT_VERSION, client_version,
-					EGL10.EGL_NONE
-				};
-
-				Gfx_Context = egl.eglCreateContext(Gfx_Display, Gfx_Config, EGL10.EGL_NO_CONTEXT, attrib_list);
+				Log.i(TAG, "CreateContext - Using cached config " + cached);
+				return configs[0];
 			}
+			Log.i(TAG, "CreateContext - Cached config " + cached + " rejected");
 		}
-		CheckEGLError("CreateContext eglCreateContext");
-		if(Gfx_Context == EGL10.EGL_NO_CONTEXT)
+
+		EGLConfig config = ChooseConfig();
+		if(config != null)
 		{
-			Log.e(TAG, "CreateContext - eglCreateContext failed");
-			return;
+			int id = GetConfigAttrib(config, EGL10.EGL_CONFIG_ID);
+			prefs.edit().putInt(key, id).apply();
+			Log.i(TAG, "CreateContext - Using config " + id);
 		}
+		return config;
 	}
 
 	public void DestroyContext()
@@ -301,6 +610,24 @@ public class A3DNativeRenderer implements A3DRenderer
 			return;
 		}
 
+		// The loader context must go before the share context
+		if(Loader != null)
+		{
+			Loader.Stop();
+			Loader = null;
+		}
+
+		// The shared context outlives this renderer so it must
+		// be current for NativeDestroy to delete GPU objects. A
+		// render thread shared by several views may also have
+		// another view's context current.
+		EGLSurface pbuffer = EGL10.EGL_NO_SURFACE;
+		if((Shared != null) ||
+		   (egl.eglGetCurrentContext() != Gfx_Context))
+		{
+			pbuffer = MakeContextCurrent();
+		}
+
 		NativeDestroy();
 		Has_Created_Native = false;
 
@@ -309,6 +636,17 @@ public class A3DNativeRenderer implements A3DRenderer
 			Log.e(TAG, "DestroyContext - eglMakeCurrent failed");
 		}
 
+		if(pbuffer != EGL10.EGL_NO_SURFACE)
+		{
+			egl.eglDestroySurface(Gfx_Display, pbuffer);
+		}
+
+		if(Shared != null)
+		{
+			ReleaseShared();
+			return;
+		}
+
 		if(!egl.eglDestroyContext(Gfx_Display, Gfx_Context))
 		{
 			Log.e(TAG, "DestroyContext - eglDestroyContext failed");
@@ -321,6 +659,65 @@ public class A3DNativeRenderer implements A3DRenderer
 		}
 	}
 
+	private EGLSurface MakeContextCurrent()
+	{
+		// The window surface has usually been destroyed already
+		// so use a 1x1 pbuffer and fall back to a surfaceless
+		// context (EGL_KHR_surfaceless_context)
+		EGLSurface surface = Gfx_Surface;
+		EGLSurface pbuffer = EGL10.EGL_NO_SURFACE;
+		if(surface == EGL10.EGL_NO_SURFACE)
+		{
+			int[] attrib_list =
+			{
+				EGL10.EGL_WIDTH,  1,
+				EGL10.EGL_HEIGHT, 1,
+				EGL10.EGL_NONE
+			};
+
+			pbuffer = egl.eglCreatePbufferSurface(Gfx_Display, Gfx_Config, attrib_list);
+			surface = pbuffer;
+		}
+
+		if(!egl.eglMakeCurrent(Gfx_Display, surface, surface, Gfx_Context))
+		{
+			CheckEGLError("MakeContextCurrent eglMakeCurrent");
+			Log.e(TAG, "MakeContextCurrent - GPU objects may leak until the context is destroyed");
+		}
+		return pbuffer;
+	}
+
+	private void ReleaseShared()
+	{
+		synchronized(Shared_Lock)
+		{
+			A3DSharedContext shared = Shared;
+			Shared      = null;
+			Gfx_Context = EGL10.EGL_NO_CONTEXT;
+			--Shared_Refs;
+			if(--shared.Refs > 0)
+			{
+				return;
+			}
+
+			if(!egl.eglDestroyContext(shared.Display, shared.Context))
+			{
+				Log.e(TAG, "ReleaseShared - eglDestroyContext failed");
+			}
+
+			if(Shared_Current == shared)
+			{
+				Shared_Current = null;
+			}
+
+			// The display is shared by every context
+			if((Shared_Refs == 0) && !egl.eglTerminate(shared.Display))
+			{
+				Log.e(TAG, "ReleaseShared - eglTerminate failed");
+			}
+		}
+	}
+
 	public void CreateSurface(SurfaceHolder surface_holder)
 	{
 		if(Gfx_Surface != EGL10.EGL_NO_SURFACE)
@@ -374,10 +771,178 @@ public class A3DNativeRenderer implements A3DRenderer
 		Gfx_Surface = EGL10.EGL_NO_SURFACE;
 	}
 
+	private boolean RestoreContext()
+	{
+		// Wait for the next retry without spinning. The sleep
+		// returns early when the render thread is unparked so
+		// that events are still handled between retries.
+		long now = Clock.Now();
+		if((Restore_Retries > 0) && (now - Restore_Time < 0))
+		{
+			Clock.Sleep(Restore_Time - now);
+			return false;
+		}
+
+		// A shared context is replaced by the full rebuild
+		if(Context_Restore && (Shared == null) &&
+		   (Restore_Retries < RESTORE_MAX_RETRIES))
+		{
+			if(RecreateContext())
+			{
+				Gfx_Context_Lost = false;
+				Restore_Retries  = 0;
+				return true;
+			}
+
+			long delay = RESTORE_DELAY_NS << Restore_Retries;
+			Restore_Time = now + ((delay < RESTORE_MAX_NS) ? delay : RESTORE_MAX_NS);
+			++Restore_Retries;
+			Log.i(TAG, "RestoreContext - retry " + Restore_Retries + " in " + (Restore_Time - now)/1000000 + "ms");
+			return false;
+		}
+
+		// Rebuild the display, config and native state
+		Log.i(TAG, "RestoreContext - full rebuild");
+		Gfx_Context_Lost = false;
+		Restore_Retries  = 0;
+		if(Shared != null)
+		{
+			// Don't hand the lost context to other renderers
+			synchronized(Shared_Lock)
+			{
+				Shared.Lost = true;
+			}
+		}
+		DestroySurface();
+		if(Gfx_Context != EGL10.EGL_NO_CONTEXT)
+		{
+			DestroyContext();
+		}
+		else
+		{
+			// RecreateContext failed and left no context so
+			// DestroyContext would skip NativeDestroy
+			if(Has_Created_Native)
+			{
+				NativeDestroy();
+				Has_Created_Native = false;
+			}
+
+			if(!egl.eglTerminate(Gfx_Display))
+			{
+				Log.e(TAG, "RestoreContext - eglTerminate failed");
+			}
+		}
+		Native_Lost = false;
+		CreateContext();
+		CreateSurface(Surface_Holder);
+		NativeChangeSurface(Width, Height);
+		NativeChangeDensity(Density*Scale);
+		return (Gfx_Context_Lost == false);
+	}
+
+	private boolean RecreateContext()
+	{
+		// Keep the display and Gfx_Config and only replace the
+		// context and window surface
+		if(Loader != null)
+		{
+			Loader.Stop();
+			Loader = null;
+		}
+
+		egl.eglMakeCurrent(Gfx_Display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+		if(Gfx_Surface != EGL10.EGL_NO_SURFACE)
+		{
+			egl.eglDestroySurface(Gfx_Display, Gfx_Surface);
+			Gfx_Surface = EGL10.EGL_NO_SURFACE;
+		}
+		if(Gfx_Context != EGL10.EGL_NO_CONTEXT)
+		{
+			egl.eglDestroyContext(Gfx_Display, Gfx_Context);
+			Gfx_Context = EGL10.EGL_NO_CONTEXT;
+		}
+		egl.eglGetError();
+
+		if(Has_Created_Native && (Native_Lost == false))
+		{
+			NativeContextLost();
+			Native_Lost = true;
+		}
+
+		Gfx_Context = NewEGLContext();
+		if(Gfx_Context == EGL10.EGL_NO_CONTEXT)
+		{
+			CheckEGLError("RecreateContext eglCreateContext");
+			return false;
+		}
+
+		Gfx_Surface = egl.eglCreateWindowSurface(Gfx_Display, Gfx_Config, Surface_Holder, null);
+		if(Gfx_Surface == EGL10.EGL_NO_SURFACE)
+		{
+			CheckEGLError("RecreateContext eglCreateWindowSurface");
+			return false;
+		}
+
+		if(!egl.eglMakeCurrent(Gfx_Display, Gfx_Surface, Gfx_Surface, Gfx_Context))
+		{
+			CheckEGLError("RecreateContext eglMakeCurrent");
+			return false;
+		}
+
+		if(Native_Lost)
+		{
+			NativeContextRestored();
+			Native_Lost = false;
+		}
+		else if(Has_Created_Native == false)
+		{
+			NativeCreate();
+			Has_Created_Native = true;
+		}
+		NativeChangeSurface(Width, Height);
+		NativeChangeDensity(Density*Scale);
+
+		if(Use_Loader)
+		{
+			Loader = new A3DLoader(egl, Gfx_Display, Gfx_Config,
+			                       Gfx_Context, Client_Version,
+			                       Has_No_Error);
+		}
+		return true;
+	}
+
+	public void ChangeScale(float scale)
+	{
+		// The surface buffer is scaled relative to the view
+		Scale = scale;
+	}
+
+	private boolean MakeCurrent()
+	{
+		// A render thread shared by several views switches
+		// between their surfaces and (unless shared) contexts
+		if((Gfx_Surface == EGL10.EGL_NO_SURFACE) ||
+		   ((egl.eglGetCurrentContext() == Gfx_Context) &&
+		    (egl.eglGetCurrentSurface(EGL10.EGL_DRAW) == Gfx_Surface)))
+		{
+			return true;
+		}
+
+		if(!egl.eglMakeCurrent(Gfx_Display, Gfx_Surface, Gfx_Surface, Gfx_Context))
+		{
+			CheckEGLError("MakeCurrent eglMakeCurrent");
+			Gfx_Context_Lost = true;
+			return false;
+		}
+		return true;
+	}
+
 	public void ChangeSurface(int format, int width, int height)
 	{
+		MakeCurrent();
 		NativeChangeSurface(width, height);
-		NativeChangeDensity(Density);
+		NativeChangeDensity(Density*Scale);
 		Width  = width;
 		Height = height;
 	}
@@ -398,35 +963,33 @@ public class A3DNativeRenderer implements A3DRenderer
 		// EGL_CONTEXT_LOST can be detected at eglSwapBuffers, eglCopyBuffers and eglMakeCurrent
 		if(Gfx_Context_Lost)
 		{
-			Gfx_Context_Lost = false;
-			DestroySurface();
-			DestroyContext();
-			CreateContext();
-			CreateSurface(Surface_Holder);
-			NativeChangeSurface(Width, Height);
-			NativeChangeDensity(Density);
-			if(Gfx_Context_Lost == true) return;
+			if(RestoreContext() == false) return;
 			Log.i(TAG, "Draw - Context restored");
 		}
 
-		Prev_Draw = System.currentTimeMillis();
+		if(!MakeCurrent())
+		{
+			return;
+		}
+
+		Prev_Draw = Clock.Now();
 		NativeDraw();
-		Total_Draw += System.currentTimeMillis() - Prev_Draw;
+		Total_Draw += Clock.Now() - Prev_Draw;
 
-		Prev_eglSwapBuffers = System.currentTimeMillis();
+		Prev_eglSwapBuffers = Clock.Now();
 		if(!egl.eglSwapBuffers(Gfx_Display, Gfx_Surface))
 		{
 			CheckEGLError("Draw eglSwapBuffers");
 			Gfx_Context_Lost = true;
 		}
-		Total_eglSwapBuffers += System.currentTimeMillis() - Prev_eglSwapBuffers;
+		Total_eglSwapBuffers += Clock.Now() - Prev_eglSwapBuffers;
 		CheckEGLError("Draw");
 
 		{
-		   long t = System.currentTimeMillis();
+		   long t = Clock.Now();
 
 			// Don't update fps every frame
-			if (t - T0 >= 1000)
+			if (t - T0 >= 1000000000L)
 			{
 				// Log.i(TAG, "Draw = " + Total_Draw + ", eglSwapBuffers = " + Total_eglSwapBuffers);
 				Total_Draw = 0;
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import android.view.SurfaceHolder;
+
+/*
+ * Measures A3DRenderLoop overhead and lifecycle latency in a
+ * plain JVM. The renderer is a CPU stand-in and the surface
+ * and lifecycle events are scripted.
+ *
+ * usage: A3DRenderBench [command ...]
+ *   create        surface created
+ *   destroy       surface destroyed
+ *   change:WxH    surface changed
+ *   resume        resume
+ *   pause         pause
+ *   stop          stop
+ *   work:US       CPU time spent in each Draw
+ *   fps:F         target frame rate (0 is unpaced)
+ *   run:MS        draw for MS and report the frame rate
+ *   cycle:N       N pause/resume cycles and report latency
+ *   service:NxMS  draw N loops on one A3DRenderService for MS
+ */
+public class A3DRenderBench
+{
+	private static final String[] DEFAULT_SCRIPT =
+	{
+		"create", "change:1280x720", "resume",
+		"run:1000", "cycle:100",
+		"work:2000", "fps:60", "run:1000",
+		"service:4x1000",
+		"stop"
+	};
+
+	private static class A3DBenchRenderer implements A3DRenderer
+	{
+		private A3DClock Clock;
+
+		public volatile long Draws   = 0;
+		public volatile long Work_Ns = 0;
+
+		A3DBenchRenderer(A3DClock clock)
+		{
+			Clock = clock;
+		}
+
+		public void CreateContext() { }
+		public void DestroyContext() { }
+		public void CreateSurface(SurfaceHolder surface_holder) { }
+		public void DestroySurface() { }
+		public void ChangeSurface(int format, int width, int height) { }
+		public void ChangeScale(float scale) { }
+		public void Resume() { }
+		public void Pause() { }
+
+		public void Draw()
+		{
+			long t0 = Clock.Now();
+			while(Clock.Now() - t0 < Work_Ns)
+			{
+				// busy
+			}
+			++Draws;
+		}
+	}
+
+	private A3DClock         Clock    = A3DClock.GetDefault();
+	private A3DBenchRenderer Renderer = new A3DBenchRenderer(Clock);
+	private A3DRenderLoop    Loop     = new A3DRenderLoop(Renderer, null, Clock);
+	private float            Fps      = 0.0f;
+
+	public static void main(String[] args)
+	{
+		A3DRenderBench bench = new A3DRenderBench();
+		bench.Run((args.length > 0) ? args : DEFAULT_SCRIPT);
+	}
+
+	public void Run(String[] script)
+	{
+		Thread render_thread = new Thread(Loop, "A3DRenderBench");
+		Loop.Attach(render_thread);
+		render_thread.start();
+
+		for(int i = 0; i < script.length; ++i)
+		{
+			String cmd = script[i];
+			String arg = "";
+			int    idx = cmd.indexOf(':');
+			if(idx >= 0)
+			{
+				arg = cmd.substring(idx + 1);
+				cmd = cmd.substring(0, idx);
+			}
+
+			if(cmd.equals("create"))
+			{
+				Loop.SurfaceCreated();
+			}
+			else if(cmd.equals("destroy"))
+			{
+				Loop.SurfaceDestroyed();
+			}
+			else if(cmd.equals("change"))
+			{
+				int x = arg.indexOf('x');
+				Loop.SurfaceChanged(0, Integer.parseInt(arg.substring(0, x)),
+				                    Integer.parseInt(arg.substring(x + 1)), 1.0f);
+			}
+			else if(cmd.equals("resume"))
+			{
+				Loop.Resume();
+			}
+			else if(cmd.equals("pause"))
+			{
+				Loop.Pause();
+			}
+			else if(cmd.equals("stop"))
+			{
+				long t0 = Clock.Now();
+				Loop.Stop();
+				Report("stop", Clock.Now() - t0);
+			}
+			else if(cmd.equals("work"))
+			{
+				Renderer.Work_Ns = 1000L*Long.parseLong(arg);
+			}
+			else if(cmd.equals("fps"))
+			{
+				Fps = Float.parseFloat(arg);
+				Loop.SetFrameRate(Fps);
+			}
+			else if(cmd.equals("run"))
+			{
+				RunFrames(Long.parseLong(arg));
+			}
+			else if(cmd.equals("cycle"))
+			{
+				Cycle(Integer.parseInt(arg));
+			}
+			else if(cmd.equals("service"))
+			{
+				int x = arg.indexOf('x');
+				Service(Integer.parseInt(arg.substring(0, x)),
+				        Long.parseLong(arg.substring(x + 1)));
+			}
+			else
+			{
+				System.out.println("unknown command " + script[i]);
+			}
+		}
+
+		if(Loop.IsStopped() == false)
+		{
+			Loop.Stop();
+		}
+
+		try
+		{
+			render_thread.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void RunFrames(long ms)
+	{
+		long d0 = Renderer.Draws;
+		long t0 = Clock.Now();
+		Sleep(ms);
+		long frames = Renderer.Draws - d0;
+		long dt     = Clock.Now() - t0;
+
+		double fps = 1.0e9*frames/dt;
+		System.out.println("run: " + frames + " frames in " + dt/1000000 + " ms, " +
+		                   String.format("%.1f", fps) + " fps, " +
+		                   ((frames > 0) ? dt/frames : 0) + " ns/frame");
+	}
+
+	private void Cycle(int n)
+	{
+		long pause_min  = Long.MAX_VALUE;
+		long pause_max  = 0;
+		long pause_sum  = 0;
+		long resume_min = Long.MAX_VALUE;
+		long resume_max = 0;
+		long resume_sum = 0;
+		for(int i = 0; i < n; ++i)
+		{
+			// Pause blocks until the render thread has paused
+			long t0 = Clock.Now();
+			Loop.Pause();
+			long t1 = Clock.Now();
+
+			// Resume completes at the next Draw
+			long draws = Renderer.Draws;
+			Loop.Resume();
+			while(Renderer.Draws == draws)
+			{
+				Thread.yield();
+			}
+			long t2 = Clock.Now();
+
+			long pause  = t1 - t0;
+			long resume = t2 - t1;
+			pause_min   = Math.min(pause_min, pause);
+			pause_max   = Math.max(pause_max, pause);
+			pause_sum  += pause;
+			resume_min  = Math.min(resume_min, resume);
+			resume_max  = Math.max(resume_max, resume);
+			resume_sum += resume;
+		}
+
+		if(n > 0)
+		{
+			System.out.println("pause:  min=" + pause_min/1000 + "us avg=" + pause_sum/n/1000 +
+			                   "us max=" + pause_max/1000 + "us");
+			System.out.println("resume: min=" + resume_min/1000 + "us avg=" + resume_sum/n/1000 +
+			                   "us max=" + resume_max/1000 + "us");
+		}
+	}
+
+	private void Service(int n, long ms)
+	{
+		// the loops use the current work and frame rate
+		A3DRenderService   service   = new A3DRenderService(Clock);
+		A3DBenchRenderer[] renderers = new A3DBenchRenderer[n];
+		A3DRenderLoop[]    loops     = new A3DRenderLoop[n];
+		for(int i = 0; i < n; ++i)
+		{
+			renderers[i] = new A3DBenchRenderer(Clock);
+			renderers[i].Work_Ns = Renderer.Work_Ns;
+			loops[i] = new A3DRenderLoop(renderers[i], null, Clock);
+			loops[i].SetFrameRate(Fps);
+			service.Register(loops[i]);
+			loops[i].SurfaceCreated();
+			loops[i].SurfaceChanged(0, 1280, 720, 1.0f);
+			loops[i].Resume();
+		}
+
+		long t0 = Clock.Now();
+		Sleep(ms);
+		long dt = Clock.Now() - t0;
+
+		long frames = 0;
+		for(int i = 0; i < n; ++i)
+		{
+			frames += renderers[i].Draws;
+		}
+
+		// each Stop blocks until the service thread handles it
+		long t1 = Clock.Now();
+		for(int i = 0; i < n; ++i)
+		{
+			loops[i].Stop();
+		}
+		long t2 = Clock.Now();
+		service.Shutdown();
+
+		double fps = 1.0e9*frames/dt;
+		System.out.println("service: " + n + " loops, " + frames + " frames in " + dt/1000000 + " ms, " +
+		                   String.format("%.1f", fps/((n > 0) ? n : 1)) + " fps/loop, " +
+		                   ((frames > 0) ? dt/frames : 0) + " ns/frame");
+		Report("service stop", t2 - t1);
+	}
+
+	private static void Report(String what, long ns)
+	{
+		System.out.println(what + ": " + ns/1000 + "us");
+	}
+
+	private static void Sleep(long ms)
+	{
+		try
+		{
+			Thread.sleep(ms);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import android.view.SurfaceHolder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Host independent render loop. Lifecycle and surface events
+ * are queued by any thread and handled on the render thread
+ * which draws frames with the A3DRenderer.
+ *
+ * The loop only depends on SurfaceHolder as the type passed
+ * to CreateSurface so it runs in a plain JVM with a null
+ * holder (see A3DRenderBench). Hosts extend the loop through
+ * the On* hooks which are called on the render thread.
+ */
+public class A3DRenderLoop implements Runnable
+{
+	private A3DRenderer   Renderer;
+	private SurfaceHolder Surface_Holder;
+
+	// Render thread state
+	private Thread Render_Thread;
+	private volatile boolean Stop_Renderer = false;   // Has the renderer stopped? (construct a new renderer to draw again)
+	private boolean   Running_Flag  = false;   // Is the rendering thread paused?
+	private boolean   Surface_Flag  = false;   // Does the rendering thread have a surface?
+
+	// Blocking events wait for Handled to pass their position
+	// in the queue. Only blocking events take the Ack_Lock.
+	private AtomicLong Handled   = new AtomicLong(0);
+	private Lock       Ack_Lock  = new ReentrantLock();
+	private Condition  Ack_Cond  = Ack_Lock.newCondition();
+
+	// Events
+	private static final int PAUSE_EVENT             = 0;
+	private static final int RESUME_EVENT            = 1;
+	private static final int STOP_EVENT              = 2;
+	private static final int SURFACE_CREATED_EVENT   = 3;
+	private static final int SURFACE_DESTROYED_EVENT = 4;
+	private static final int SURFACE_CHANGED_EVENT   = 5;
+
+	private A3DEventQueue Event_Queue = new A3DEventQueue(32);
+
+	// Render modes
+	public static final int RENDER_CONTINUOUSLY = 0;
+	public static final int RENDER_WHEN_DIRTY   = 1;
+
+	// Requests are merged until the next frame is drawn
+	private volatile int  Render_Mode      = RENDER_CONTINUOUSLY;
+	private AtomicBoolean Render_Requested = new AtomicBoolean(true);
+
+	// Frame pacing is disabled by default
+	private A3DClock      Clock;
+	private A3DFramePacer Pacer;
+
+	// Step results
+	public static final long STEP_STOPPED = -1;
+	public static final long STEP_IDLE    = Long.MAX_VALUE;
+
+	// Surface changes are coalesced so that only the latest
+	// size is applied when the previous change is still pending
+	private static class A3DSurfaceSize
+	{
+		public final int   Format;
+		public final int   Width;
+		public final int   Height;
+		public final float Scale;
+
+		A3DSurfaceSize(int format, int width, int height, float scale)
+		{
+			Format = format;
+			Width  = width;
+			Height = height;
+			Scale  = scale;
+		}
+	}
+
+	private volatile A3DSurfaceSize Surface_Size = new A3DSurfaceSize(0, 0, 0, 1.0f);
+	private AtomicLong Surface_Changed_Pos = new AtomicLong(-1);
+
+	public A3DRenderLoop(A3DRenderer renderer, SurfaceHolder surface_holder, A3DClock clock)
+	{
+		Renderer       = renderer;
+		Surface_Holder = surface_holder;
+		Clock          = clock;
+		Pacer          = new A3DFramePacer(clock);
+	}
+
+	// The thread which runs the loop or steps it
+	public void Attach(Thread render_thread)
+	{
+		Render_Thread = render_thread;
+	}
+
+	public A3DClock GetClock()
+	{
+		return Clock;
+	}
+
+	public boolean IsStopped()
+	{
+		return Stop_Renderer;
+	}
+
+	/***********************************************************
+	* Render thread hooks                                      *
+	***********************************************************/
+
+	// Before the first Step
+	protected void OnStart()
+	{
+	}
+
+	// After the loop has stopped
+	protected void OnFinish()
+	{
+	}
+
+	// Between CreateContext and CreateSurface
+	protected void OnCreateSurface()
+	{
+	}
+
+	// Before each Draw
+	protected void OnFrame()
+	{
+	}
+
+	// After each Draw with the cost of Draw in nanoseconds
+	protected void OnDraw(long cost)
+	{
+	}
+
+	/***********************************************************
+	* Lifecycle interface                                      *
+	***********************************************************/
+
+	public void Pause()
+	{
+		QueueEventBlocking(PAUSE_EVENT);
+	}
+
+	public void Resume()
+	{
+		QueueEvent(RESUME_EVENT);
+	}
+
+	public void Stop()
+	{
+		QueueEventBlocking(STOP_EVENT);
+	}
+
+	public void SurfaceCreated()
+	{
+		QueueEvent(SURFACE_CREATED_EVENT);
+	}
+
+	public void SurfaceDestroyed()
+	{
+		QueueEventBlocking(SURFACE_DESTROYED_EVENT);
+	}
+
+	public void SurfaceChanged(int format, int w, int h, float scale)
+	{
+		Surface_Size = new A3DSurfaceSize(format, w, h, scale);
+
+		// Coalesce with a pending change when no other events
+		// have been queued after it. The render thread reads
+		// Surface_Size after it receives the event.
+		long pos = Surface_Changed_Pos.get();
+		if((pos >= 0) && (Event_Queue.Tail() == pos + 1) &&
+		   Event_Queue.IsPending(pos))
+		{
+			return;
+		}
+
+		pos = QueueEvent(SURFACE_CHANGED_EVENT);
+		if(pos >= 0)
+		{
+			Surface_Changed_Pos.set(pos);
+		}
+	}
+
+	/***********************************************************
+	* Render mode interface                                    *
+	***********************************************************/
+
+	public void SetRenderMode(int mode)
+	{
+		Render_Mode = mode;
+
+		// Draw once so that the view reflects the latest state
+		RequestRender();
+	}
+
+	public int GetRenderMode()
+	{
+		return Render_Mode;
+	}
+
+	public void RequestRender()
+	{
+		// Only the first request since the last frame unparks
+		if(Render_Requested.getAndSet(true) == false)
+		{
+			LockSupport.unpark(Render_Thread);
+		}
+	}
+
+	/***********************************************************
+	* Frame pacing interface                                   *
+	***********************************************************/
+
+	public void SetFrameRate(float fps)
+	{
+		// 0 draws as fast as eglSwapBuffers allows
+		Pacer.SetTargetFps(fps);
+		LockSupport.unpark(Render_Thread);
+	}
+
+	public void SetIdleFrameRate(float fps, float timeout)
+	{
+		// Drop to fps after timeout seconds without input
+		Pacer.SetIdleFps(fps, timeout);
+		LockSupport.unpark(Render_Thread);
+	}
+
+	public void Input()
+	{
+		if(Pacer.IsEnabled())
+		{
+			// Leave the idle rate immediately
+			Pacer.Input();
+			LockSupport.unpark(Render_Thread);
+		}
+
+		if(Render_Mode == RENDER_WHEN_DIRTY)
+		{
+			RequestRender();
+		}
+	}
+
+	/***********************************************************
+	* Queueing interface                                       *
+	***********************************************************/
+	private void QueueEventBlocking(int event)
+	{
+		long pos = QueueEvent(event);
+		if(pos < 0) return;
+
+		// Wait for the render thread to handle the event
+		Ack_Lock.lock();
+		try
+		{
+			while((Stop_Renderer == false) && (Handled.get() <= pos))
+			{
+				Ack_Cond.awaitUninterruptibly();
+			}
+		}
+		finally
+		{
+			Ack_Lock.unlock();
+		}
+	}
+
+	private long QueueEvent(int event)
+	{
+		// Don't handle any more events once stopped
+		if(Stop_Renderer) return -1;
+
+		long pos;
+		while((pos = Event_Queue.Offer(event)) < 0)
+		{
+			// The queue is only full if the render thread
+			// is busy so wait for it to catch up
+			LockSupport.unpark(Render_Thread);
+			Thread.yield();
+			if(Stop_Renderer) return -1;
+		}
+
+		LockSupport.unpark(Render_Thread);
+		return pos;
+	}
+
+	/***********************************************************
+	* Render thread interface                                  *
+	***********************************************************/
+
+	private boolean HandleEvents()
+	{
+		// Receive events until all events have been handled
+		// Returns false once the renderer has stopped
+		int event;
+		while((event = Event_Queue.Poll()) != A3DEventQueue.NONE)
+		{
+			boolean needs_signal = HandleEvent(event);
+
+			// Notify UI thread that event was handled for blocking events
+			Handled.set(Event_Queue.Head());
+			if(needs_signal) SignalHandled();
+
+			// Exit the render thread when STOP_EVENT is received
+			if(Stop_Renderer) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Handles pending events and draws a frame if one is due
+	 * without blocking. Returns 0 if a frame was drawn, the
+	 * nanoseconds until the next frame is due, STEP_IDLE if
+	 * waiting for events or STEP_STOPPED.
+	 */
+	public long Step()
+	{
+		if(!HandleEvents()) return STEP_STOPPED;
+
+		// Wait for events until we are "running" and have a
+		// surface
+		if(!(Running_Flag && Surface_Flag &&
+		     ((Render_Mode == RENDER_CONTINUOUSLY) || Render_Requested.get())))
+		{
+			return STEP_IDLE;
+		}
+
+		long delay = Pacer.Delay();
+		if(delay > 0) return delay;
+
+		// Requests made during Draw cause another frame
+		Render_Requested.set(false);
+		Pacer.Frame();
+		OnFrame();
+
+		long t0 = Clock.Now();
+		Renderer.Draw();
+		OnDraw(Clock.Now() - t0);
+		return 0;
+	}
+
+	private boolean HandleEvent(int event)
+	{
+		if(event == SURFACE_CREATED_EVENT)
+		{
+			Renderer.CreateContext();
+			OnCreateSurface();
+			Renderer.CreateSurface(Surface_Holder);
+			Surface_Flag = true;
+			Render_Requested.set(true);
+		}
+		else if(event == SURFACE_CHANGED_EVENT)
+		{
+			A3DSurfaceSize size = Surface_Size;
+			Renderer.ChangeScale(size.Scale);
+			Renderer.ChangeSurface(size.Format, size.Width, size.Height);
+			Render_Requested.set(true);
+		}
+		else if(event == RESUME_EVENT)
+		{
+			// Pick up wall clock changes made while paused
+			Clock.Resync();
+			Pacer.Input();
+			Renderer.Resume();
+			Running_Flag = true;
+			Render_Requested.set(true);
+		}
+		else if(event == PAUSE_EVENT)
+		{
+			Renderer.Pause();
+			Running_Flag = false;
+			return true;
+		}
+		else if(event == SURFACE_DESTROYED_EVENT)
+		{
+			Renderer.DestroySurface();
+			Surface_Flag = false;
+			return true;
+		}
+		else if(event == STOP_EVENT)
+		{
+			// Make sure we have paused and destroyed the surfaces first
+			Running_Flag = false;
+			if(Surface_Flag)
+			{
+				Renderer.DestroySurface();
+				Surface_Flag = false;
+			}
+			Renderer.DestroyContext();
+			Stop_Renderer = true;
+			return true;
+		}
+		return false;
+	}
+
+	private void SignalHandled()
+	{
+		Ack_Lock.lock();
+		try
+		{
+			Ack_Cond.signalAll();
+		}
+		finally
+		{
+			Ack_Lock.unlock();
+		}
+	}
+
+	public void run()
+	{
+		OnStart();
+
+		while(true)
+		{
+			long delay = Step();
+			if(delay == STEP_STOPPED)
+			{
+				break;
+			}
+			else if(delay == STEP_IDLE)
+			{
+				LockSupport.park(this);
+			}
+			else if(delay > 0)
+			{
+				// Wait returns early when unparked so that events
+				// are handled while waiting for the next frame
+				Pacer.Wait();
+			}
+		}
+
+		OnFinish();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Drives several A3DRenderLoops from one render thread. Each
+ * pass steps every registered view, which handles its events
+ * and draws if a frame is due, and then sleeps until the
+ * earliest view is due. Loops leave the service when they are
+ * stopped.
+ *
+ * Each renderer makes its context and surface current before
+ * it draws. Renderers should share one EGL context (see
+ * A3DNativeRenderer.SetSharedContext) so that the thread only
+ * switches surfaces between views.
+ */
+public class A3DRenderService implements Runnable
+{
+	private static final String TAG = "A3DRenderService";
+
+	// sleep until the deadline is this close and then yield
+	private static final long SPIN_NS = 1000000L;
+
+	private final A3DClock Clock;
+	private final Thread   Render_Thread;
+	private CopyOnWriteArrayList<A3DRenderLoop> Loops = new CopyOnWriteArrayList<A3DRenderLoop>();
+	private volatile boolean Shutdown_Flag = false;
+
+	public A3DRenderService()
+	{
+		this(A3DClock.GetDefault());
+	}
+
+	public A3DRenderService(A3DClock clock)
+	{
+		Clock         = clock;
+		Render_Thread = new Thread(this, TAG);
+		Render_Thread.start();
+	}
+
+	public A3DClock GetClock()
+	{
+		return Clock;
+	}
+
+	public void Register(A3DRenderLoop loop)
+	{
+		// Events queued on the loop unpark the service thread
+		loop.Attach(Render_Thread);
+		Loops.add(loop);
+		LockSupport.unpark(Render_Thread);
+	}
+
+	public int GetLoopCount()
+	{
+		return Loops.size();
+	}
+
+	public void Shutdown()
+	{
+		// Exits once the registered loops have stopped
+		Shutdown_Flag = true;
+		LockSupport.unpark(Render_Thread);
+	}
+
+	public void run()
+	{
+		// loops which have been started on this thread
+		ArrayList<A3DRenderLoop> started = new ArrayList<A3DRenderLoop>();
+
+		while(true)
+		{
+			long delay = A3DRenderLoop.STEP_IDLE;
+			for(A3DRenderLoop loop : Loops)
+			{
+				if(!started.contains(loop))
+				{
+					loop.OnStart();
+					started.add(loop);
+				}
+
+				long d = loop.Step();
+				if(d == A3DRenderLoop.STEP_STOPPED)
+				{
+					Loops.remove(loop);
+					started.remove(loop);
+					loop.OnFinish();
+					continue;
+				}
+
+				if(d < delay) delay = d;
+			}
+
+			if(Shutdown_Flag && Loops.isEmpty())
+			{
+				break;
+			}
+			else if(delay == A3DRenderLoop.STEP_IDLE)
+			{
+				LockSupport.park(this);
+			}
+			else if(delay > SPIN_NS)
+			{
+				Clock.Sleep(delay - SPIN_NS);
+			}
+			else if(delay > 0)
+			{
+				Clock.Yield();
+			}
+		}
+	}
+}
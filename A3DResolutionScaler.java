@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+/*
+ * Chooses a render scale from the measured frame cost. The
+ * scale steps down when the smoothed cost exceeds the budget
+ * and steps up when it is comfortably under the budget.
+ *
+ * eglSwapBuffers may block for vsync so a frame that fits the
+ * budget cannot always be told apart from one that barely
+ * fits. The scaler therefore also probes one step up after a
+ * run of frames without a miss and backs off the probe if it
+ * causes a step down.
+ */
+class A3DResolutionScaler
+{
+	// hysteresis thresholds relative to the budget
+	private static final float HIGH  = 1.1f;
+	private static final float LOW   = 0.85f;
+	private static final float ALPHA = 0.1f;   // EMA weight
+
+	// frames to ignore after a change while the surface resizes
+	private static final int COOLDOWN  = 30;
+	private static final int PROBE     = 300;
+	private static final int PROBE_MAX = 4800;
+
+	private final float Min_Scale;
+	private final float Max_Scale;
+	private final float Step;
+	private final long  Budget;
+
+	private volatile float Scale;
+
+	// render thread only
+	private float   Cost     = 0.0f;
+	private int     Frames   = 0;
+	private int     Stable   = 0;
+	private int     Probe    = PROBE;
+	private boolean Probing  = false;
+
+	A3DResolutionScaler(float fps, float min_scale, float max_scale, float step)
+	{
+		Min_Scale = min_scale;
+		Max_Scale = max_scale;
+		Step      = step;
+		Budget    = (long) (1000000000.0/fps);
+		Scale     = max_scale;
+	}
+
+	public float GetScale()
+	{
+		return Scale;
+	}
+
+	/*
+	 * Records the cost of a frame in nanoseconds and returns
+	 * true if the scale changed
+	 */
+	public boolean Sample(long cost)
+	{
+		++Frames;
+		if(Frames <= COOLDOWN)
+		{
+			// restart the average at the new scale
+			Cost = (float) cost;
+			return false;
+		}
+
+		Cost += ALPHA*((float) cost - Cost);
+		if(Cost > HIGH*Budget)
+		{
+			Stable = 0;
+			if(Probing)
+			{
+				// the last step up did not fit
+				Probe = (2*Probe > PROBE_MAX) ? PROBE_MAX : 2*Probe;
+			}
+			Probing = false;
+			return Change(Scale - Step);
+		}
+
+		++Stable;
+		if(Stable > COOLDOWN)
+		{
+			// survived the probe
+			Probing = false;
+		}
+
+		if((Cost < LOW*Budget) || (Stable >= Probe))
+		{
+			Probing = (Cost >= LOW*Budget);
+			Stable  = 0;
+			return Change(Scale + Step);
+		}
+		return false;
+	}
+
+	private boolean Change(float scale)
+	{
+		// avoid accumulating rounding error from repeated steps
+		scale = Math.round(scale*1000.0f)/1000.0f;
+		if(scale < Min_Scale) scale = Min_Scale;
+		if(scale > Max_Scale) scale = Max_Scale;
+		if(scale == Scale)
+		{
+			Probing = false;
+			return false;
+		}
+
+		Scale  = scale;
+		Frames = 0;
+		return true;
+	}
+}
@@ -23,94 +23,1339 @@
 
 package com.jeffboody.a3d;
 
-import android.util.Log;
-import java.util.LinkedList;
-import android.content.res.Resources;
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.Closeable;
+import java.io.File;
 import java.io.InputStream;
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import android.content.Context;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class A3DResource
+{
+	private static final String TAG = "A3DResource";
+
+	// resource codecs
+	public static final int CODEC_NONE    = 0;
+	public static final int CODEC_DEFLATE = 1;   // zlib stream
+	public static final int CODEC_LZ4     = 2;   // LZ4 frame
+
+	private class A3DResourceItem
+	{
+		public int    Id;
+		public String Tag;
+		public int    Codec;
+
+		// content signature
+		public long Length = -1;
+		public long Crc    = 0;
+
+		// extracted and verified for this session
+		public volatile boolean Ready    = false;
+		public boolean          Verified = false;
+
+		// cache state
+		public volatile long Last_Access = 0;
+		public long          Size        = 0;   // bytes on disk
+		public boolean       Touched     = false;
+
+		A3DResourceItem(int id, String tag, int codec)
+		{
+			Id    = id;
+			Tag   = tag;
+			Codec = codec;
+		}
+	}
+
+	private static final String MANIFEST    = "manifest.raw";
+	private static final String PACK        = "resource.pak";
+	private static final String JOURNAL     = "journal.raw";
+	private static final String TMP         = ".tmp";
+	private static final int    BUFFER_SIZE = 65536;   // 64KB buffer
+
+	private A3DResourceSource Source;
+	private int     Timestamp;
+	private int     Parallelism;
+	private A3DResourceStats Stats = new A3DResourceStats();
+
+	// read buffer of each extraction worker
+	private final ThreadLocal<byte[]> Buffer = new ThreadLocal<byte[]>();
+	private boolean Lazy = false;
+	private boolean Packed = false;
+	private A3DResourcePack Pack;
+	private ArrayList<A3DResourceItem>       Resource_List = new ArrayList<A3DResourceItem>();
+	private HashMap<String, A3DResourceItem> Resource_Map  = new HashMap<String, A3DResourceItem>();
+
+	// lazy state
+	private volatile boolean Timestamp_Valid = false;
+	private HashMap<String, A3DResourceItem> Manifest = new HashMap<String, A3DResourceItem>();
+	private AtomicInteger Pending = new AtomicInteger(0);
+
+	// disk budget for lazy resources
+	private long       Budget      = 0;
+	private AtomicLong Cache_Bytes = new AtomicLong(0);
+	private final Object Evict_Lock = new Object();
+
+	// extraction journal
+	private PrintWriter Journal;
+
+	// asynchronous update
+	private FutureTask<Boolean> Update_Task;
+
+	public A3DResource(Context ctx, int timestamp)
+	{
+		this(ctx, timestamp, Runtime.getRuntime().availableProcessors());
+	}
+
+	public A3DResource(Context ctx, int timestamp, int parallelism)
+	{
+		this(new A3DResourceContextSource(ctx), timestamp, parallelism);
+	}
+
+	A3DResource(A3DResourceSource source, int timestamp, int parallelism)
+	{
+		Source = source;
+		Timestamp = timestamp;
+		SetParallelism(parallelism);
+	}
+
+	public void SetParallelism(int parallelism)
+	{
+		// number of extraction workers used by Update
+		Parallelism = (parallelism < 1) ? 1 : parallelism;
+	}
+
+	public void SetLazy(boolean lazy)
+	{
+		// lazy resources are only registered by Update and
+		// are extracted on the first call to Get
+		Lazy = lazy;
+	}
+
+	/*
+	 * Limits the bytes used by extracted lazy resources. The
+	 * least recently accessed resources are deleted when the
+	 * budget is exceeded and are extracted again by Get when
+	 * needed. A budget of zero is unlimited.
+	 */
+	public void SetBudget(long bytes)
+	{
+		Budget = (bytes < 0) ? 0 : bytes;
+	}
+
+	public long GetCacheBytes()
+	{
+		return Cache_Bytes.get();
+	}
+
+	public void SetPacked(boolean packed)
+	{
+		// packed resources are written by Update to a single
+		// archive which is read with GetPack
+		Packed = packed;
+	}
+
+	public boolean Add(int id, String tag)
+	{
+		return Add(id, tag, CODEC_NONE);
+	}
+
+	public boolean Add(int id, String tag, int codec)
+	{
+		try
+		{
+			if(Resource_Map.containsKey(tag))
+			{
+				Source.LogE(TAG, "Add duplicate " + tag);
+				return false;
+			}
+
+			A3DResourceItem r = new A3DResourceItem(id, tag, codec);
+			Resource_List.add(r);
+			Resource_Map.put(tag, r);
+			return true;
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+	}
+
+	/*
+	 * Registers every resource listed in a raw text resource.
+	 * Each line is "name tag [codec]" where name is the raw
+	 * resource name and codec is none, deflate or lz4. Blank
+	 * lines and lines starting with # are ignored. Returns the
+	 * number of resources added.
+	 */
+	public int AddList(int id)
+	{
+		int            count  = 0;
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(Source.OpenRaw(id), "UTF-8"));
+
+			ArrayList<String> lines = new ArrayList<String>();
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if((line.length() > 0) && (line.charAt(0) != '#'))
+				{
+					lines.add(line);
+				}
+			}
+
+			Resource_List.ensureCapacity(Resource_List.size() + lines.size());
+			for(int i = 0; i < lines.size(); ++i)
+			{
+				String[] field = lines.get(i).split("\\s+");
+				int      codec = CODEC_NONE;
+				if(field.length == 3)
+				{
+					if(field[2].equals("deflate"))   codec = CODEC_DEFLATE;
+					else if(field[2].equals("lz4"))  codec = CODEC_LZ4;
+					else if(!field[2].equals("none"))
+					{
+						Source.LogE(TAG, "AddList invalid codec " + lines.get(i));
+						continue;
+					}
+				}
+				else if(field.length != 2)
+				{
+					Source.LogE(TAG, "AddList invalid " + lines.get(i));
+					continue;
+				}
+
+				int res = Source.GetRawId(field[0]);
+				if(res == 0)
+				{
+					Source.LogE(TAG, "AddList invalid name " + field[0]);
+					continue;
+				}
+
+				if(Add(res, field[1], codec))
+				{
+					++count;
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+		}
+		finally
+		{
+			CloseQuietly(reader);
+		}
+		return count;
+	}
+
+	public A3DResourceStats GetStats()
+	{
+		return Stats;
+	}
+
+	public boolean Update()
+	{
+		long    t0     = System.nanoTime();
+		boolean status = UpdateResources();
+		Stats.AddUpdate(System.nanoTime() - t0);
+		Source.LogI(TAG, "Update " + Stats);
+		return status;
+	}
+
+	private boolean UpdateResources()
+	{
+		// initialize native resources
+		Timestamp_Valid = (IsTSValid() == 1);
+		if(Packed)
+		{
+			return UpdatePack();
+		}
+		else if(Lazy)
+		{
+			Manifest = ReadManifest();
+			Pending.set(Resource_List.size());
+			if(Timestamp_Valid == false)
+			{
+				// fold in the journal of an interrupted Update
+				// since it describes the extracted files
+				DeleteTemporary(Manifest);
+				if(ReadManifest(JOURNAL, Manifest) != -1)
+				{
+					if(WriteManifest(Manifest) == false)
+					{
+						return false;
+					}
+					Source.Delete(JOURNAL);
+				}
+				DeleteRemoved(Manifest);
+			}
+
+			if(Budget > 0)
+			{
+				InitCache();
+			}
+			return true;
+		}
+		else if(Timestamp_Valid)
+		{
+			for(int i = 0; i < Resource_List.size(); ++i)
+			{
+				A3DResourceItem r = Resource_List.get(i);
+				r.Ready = true;
+			}
+			return true;
+		}
+
+		// only extract the resources which are new or
+		// have changed since the previous manifest
+		Manifest = ReadManifest();
+		DeleteTemporary(Manifest);
+		if(Resume(Manifest) == false)
+		{
+			return false;
+		}
+
+		boolean status = ExtractAll(Manifest);
+		CloseJournal();
+		if(status == false)
+		{
+			// timestamp.raw is not written so the next
+			// Update will resume the extraction
+			Source.LogE(TAG, "Update failed");
+			return false;
+		}
+
+		for(int i = 0; i < Resource_List.size(); ++i)
+		{
+			A3DResourceItem r = Resource_List.get(i);
+			r.Ready = true;
+		}
+		DeleteRemoved(Manifest);
+
+		if(WriteManifest(Manifest) == false)
+		{
+			return false;
+		}
+		Timestamp_Valid = CopyRes(Timestamp, "timestamp.raw");
+		if(Timestamp_Valid)
+		{
+			Source.Delete(JOURNAL);
+		}
+		return Timestamp_Valid;
+	}
+
+	/*
+	 * The journal records each resource as it is completed so
+	 * that an interrupted Update may resume. Entries which were
+	 * journaled for the current timestamp are trusted without
+	 * computing their signatures again. Entries from an older
+	 * timestamp still describe the extracted files so they
+	 * replace the corresponding manifest entries.
+	 */
+	private boolean Resume(HashMap<String, A3DResourceItem> manifest)
+	{
+		A3DResourceItem stamp = new A3DResourceItem(Timestamp, "timestamp.raw", CODEC_NONE);
+		if(Signature(stamp) == false)
+		{
+			return false;
+		}
+
+		HashMap<String, A3DResourceItem> journal;
+		journal = new HashMap<String, A3DResourceItem>();
+		boolean resume = (ReadManifest(JOURNAL, journal) == stamp.Crc);
+		manifest.putAll(journal);
+
+		int resumed = 0;
+		if(resume)
+		{
+			for(int i = 0; i < Resource_List.size(); ++i)
+			{
+				A3DResourceItem r = Resource_List.get(i);
+				A3DResourceItem m = journal.get(r.Tag);
+				if((m != null) && Source.GetPath(r.Tag).exists())
+				{
+					r.Length = m.Length;
+					r.Crc    = m.Crc;
+					r.Ready  = true;
+					++resumed;
+				}
+			}
+			Source.LogI(TAG, "Resume " + resumed + " resources");
+		}
+		else if(journal.isEmpty() == false)
+		{
+			// the journal is truncated by OpenJournal so its
+			// entries must reach the manifest first
+			if(WriteManifest(manifest) == false)
+			{
+				return false;
+			}
+		}
+
+		return OpenJournal(stamp.Crc, resume);
+	}
+
+	private synchronized boolean OpenJournal(long stamp, boolean append)
+	{
+		try
+		{
+			Journal = new PrintWriter(new OutputStreamWriter(Source.OpenOutput(JOURNAL, append), "UTF-8"));
+			if(append == false)
+			{
+				Journal.print("# " + stamp + "\n");
+			}
+
+			// flush so the header precedes any entries on disk
+			Journal.flush();
+			return (Journal.checkError() == false);
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+	}
+
+	private synchronized void AppendJournal(A3DResourceItem r)
+	{
+		// each entry is flushed so that it survives the process
+		// being killed since the file was already renamed
+		if(Journal != null)
+		{
+			Journal.print(r.Crc + " " + r.Length + " " + r.Tag + "\n");
+			Journal.flush();
+		}
+	}
+
+	private synchronized void CloseJournal()
+	{
+		if(Journal != null)
+		{
+			Journal.close();
+			Journal = null;
+		}
+	}
+
+	private void DeleteTemporary(HashMap<String, A3DResourceItem> manifest)
+	{
+		// remove partial files left by an interrupted Update
+		// only the names written by this class are deleted since
+		// the files directory is shared with the app
+		Source.Delete(MANIFEST + TMP);
+		Source.Delete(PACK + TMP);
+		Source.Delete(JOURNAL + TMP);
+		Source.Delete("timestamp.raw" + TMP);
+		for(int i = 0; i < Resource_List.size(); ++i)
+		{
+			Source.Delete(Resource_List.get(i).Tag + TMP);
+		}
+		for(String tag : manifest.keySet())
+		{
+			Source.Delete(tag + TMP);
+		}
+	}
+
+	/*
+	 * Starts Update on a background thread so that extraction
+	 * may overlap other startup work (e.g. EGL context creation).
+	 * WaitForUpdate must be called before the resources are used.
+	 */
+	public synchronized void UpdateAsync()
+	{
+		if(Update_Task != null)
+		{
+			return;
+		}
+
+		Update_Task = new FutureTask<Boolean>(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return Update();
+			}
+		});
+
+		Thread thread = new Thread(Update_Task, TAG);
+		thread.start();
+	}
+
+	public synchronized boolean IsUpdateDone()
+	{
+		return (Update_Task == null) || Update_Task.isDone();
+	}
+
+	public boolean WaitForUpdate()
+	{
+		FutureTask<Boolean> task;
+		synchronized(this)
+		{
+			task = Update_Task;
+		}
+
+		if(task == null)
+		{
+			return true;
+		}
+
+		boolean interrupted = false;
+		try
+		{
+			while(true)
+			{
+				try
+				{
+					return task.get();
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+		finally
+		{
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean UpdatePack()
+	{
+		if(Lazy)
+		{
+			Source.LogI(TAG, "Update lazy ignored for packed resources");
+		}
+
+		if(Timestamp_Valid)
+		{
+			return true;
+		}
+
+		// the archive is always rewritten when the timestamp
+		// changes and replaces any extracted files
+		ClosePack();
+		HashMap<String, A3DResourceItem> manifest = ReadManifest();
+		DeleteTemporary(manifest);
+		for(String tag : manifest.keySet())
+		{
+			Source.Delete(tag);
+		}
+		Source.Delete(MANIFEST);
+
+		if(WritePack() == false)
+		{
+			Source.LogE(TAG, "Update failed");
+			return false;
+		}
+		Timestamp_Valid = CopyRes(Timestamp, "timestamp.raw");
+		return Timestamp_Valid;
+	}
+
+	private boolean WritePack()
+	{
+		// the header size does not depend on the lengths so a
+		// placeholder is written first and replaced once the
+		// (decompressed) lengths are known
+		int      count   = Resource_List.size();
+		String[] tags    = new String[count];
+		long[]   lengths = new long[count];
+		int[]    crcs    = new int[count];
+		for(int i = 0; i < Resource_List.size(); ++i)
+		{
+			A3DResourceItem r = Resource_List.get(i);
+			tags[i] = r.Tag;
+		}
+
+		FileOutputStream stream = null;
+		try
+		{
+			stream = Source.OpenOutput(PACK + TMP, false);
+			stream.write(A3DResourcePack.Header(tags, lengths, crcs));
+
+			CRC32 crc = new CRC32();
+			for(int i = 0; i < Resource_List.size(); ++i)
+			{
+				A3DResourceItem r = Resource_List.get(i);
+				if(r.Codec == CODEC_NONE)
+				{
+					if((Signature(r) == false) ||
+					   (CopyTo(r.Id, r.Codec, stream, null) != r.Length))
+					{
+						Source.LogE(TAG, "WritePack " + r.Tag + " failed");
+						return false;
+					}
+					lengths[i] = r.Length;
+					crcs[i]    = (int) r.Crc;
+				}
+				else
+				{
+					crc.reset();
+					lengths[i] = CopyTo(r.Id, r.Codec, stream, crc);
+					crcs[i]    = (int) crc.getValue();
+					if(lengths[i] < 0)
+					{
+						Source.LogE(TAG, "WritePack " + r.Tag + " failed");
+						return false;
+					}
+				}
+			}
+
+			ByteBuffer header = ByteBuffer.wrap(A3DResourcePack.Header(tags, lengths, crcs));
+			FileChannel channel = stream.getChannel();
+			while(header.hasRemaining())
+			{
+				channel.write(header, header.position());
+			}
+			Source.LogI(TAG, "WritePack " + count + " resources");
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+		finally
+		{
+			CloseQuietly(stream);
+		}
+
+		return Rename(PACK + TMP, PACK);
+	}
+
+	/*
+	 * Returns the packed resource archive which is opened
+	 * once and shared by all callers or null on error.
+	 */
+	public synchronized A3DResourcePack GetPack()
+	{
+		if(Pack == null)
+		{
+			try
+			{
+				Pack = A3DResourcePack.Open(Source.GetPath(PACK));
+			}
+			catch(Exception e)
+			{
+				Source.LogE(TAG, "exception: " + e);
+			}
+		}
+		return Pack;
+	}
+
+	public synchronized void ClosePack()
+	{
+		if(Pack != null)
+		{
+			Pack.Close();
+			Pack = null;
+		}
+	}
+
+	/*
+	 * Returns the path of the extracted resource or null on error.
+	 * Lazy resources are extracted by the first caller and other
+	 * callers for the same tag wait for that extraction. The
+	 * native layer may also call Get through JNI.
+	 */
+	public String Get(String tag)
+	{
+		A3DResourceItem r = Resource_Map.get(tag);
+		if((r == null) || Packed)
+		{
+			Source.LogE(TAG, "Get invalid " + tag);
+			return null;
+		}
+
+		boolean miss = false;
+		if(Budget > 0)
+		{
+			r.Last_Access = System.currentTimeMillis();
+		}
+
+		if(r.Ready == false)
+		{
+			synchronized(r)
+			{
+				if(r.Ready == false)
+				{
+					miss = (Source.GetPath(tag).exists() == false);
+					if(Materialize(r) == false)
+					{
+						return null;
+					}
+				}
+			}
+		}
+
+		// eviction is performed without holding the lock on r
+		// to avoid lock ordering problems with other callers
+		if(Budget > 0)
+		{
+			if(miss)
+			{
+				Stats.AddMiss();
+				Evict(r);
+			}
+			else
+			{
+				Stats.AddHit();
+				Touch(r);
+			}
+		}
+
+		return Source.GetPath(tag).getAbsolutePath();
+	}
+
+	private void InitCache()
+	{
+		// seed the access times from the previous session
+		long bytes = 0;
+		for(int i = 0; i < Resource_List.size(); ++i)
+		{
+			A3DResourceItem r = Resource_List.get(i);
+			File            f = Source.GetPath(r.Tag);
+			r.Size        = f.length();   // 0 if missing
+			r.Last_Access = f.lastModified();
+			bytes        += r.Size;
+		}
+		Cache_Bytes.set(bytes);
+	}
+
+	private void Touch(A3DResourceItem r)
+	{
+		// the modified time records the last access across
+		// sessions but is only updated once per session
+		if(r.Touched == false)
+		{
+			r.Touched = true;
+			Source.GetPath(r.Tag).setLastModified(r.Last_Access);
+		}
+	}
+
+	private void Evict(A3DResourceItem keep)
+	{
+		synchronized(Evict_Lock)
+		{
+			while(Cache_Bytes.get() > Budget)
+			{
+				// find the least recently accessed resource
+				// which is extracted to disk
+				A3DResourceItem lru = null;
+				for(int i = 0; i < Resource_List.size(); ++i)
+				{
+					A3DResourceItem r = Resource_List.get(i);
+					if((r == keep) || (r.Size == 0))
+					{
+						continue;
+					}
 
-public class A3DResource
-{
-	private static final String TAG = "A3DResource";
+					if((lru == null) || (r.Last_Access < lru.Last_Access))
+					{
+						lru = r;
+					}
+				}
 
-	private class A3DResourceItem
+				if(lru == null)
+				{
+					// keep is larger than the budget
+					return;
+				}
+
+				synchronized(lru)
+				{
+					if(lru.Size > 0)
+					{
+						Source.LogI(TAG, "Evict " + lru.Tag);
+						lru.Ready = false;
+						Source.Delete(lru.Tag);
+						Cache_Bytes.addAndGet(-lru.Size);
+						lru.Size = 0;
+						Stats.AddEviction();
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Maps an uncompressed resource in place without extracting
+	 * it to private storage. Returns null for compressed
+	 * resources which must be extracted with Get instead.
+	 */
+	public A3DResourceBuffer Map(String tag)
 	{
-		public int    Id;
-		public String Tag;
+		A3DResourceItem r = Resource_Map.get(tag);
+		if(r == null)
+		{
+			Source.LogE(TAG, "Map invalid " + tag);
+			return null;
+		}
+		else if(r.Codec != CODEC_NONE)
+		{
+			Source.LogE(TAG, "Map compressed " + tag);
+			return null;
+		}
+
+		A3DResourceSource.Raw raw = null;
+		try
+		{
+			raw = Source.OpenRawFile(r.Id);
+			if(raw == null)
+			{
+				Source.LogE(TAG, "Map compressed " + tag);
+				return null;
+			}
 
-		A3DResourceItem(int id, String tag)
+			return A3DResourceBuffer.Map(raw.Stream.getChannel(), raw.Path,
+			                             raw.Offset, raw.Length);
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return null;
+		}
+		finally
 		{
-			Id  = id;
-			Tag = tag;
+			CloseQuietly(raw);
 		}
 	}
 
-	private Context Ctx;
-	private int     Timestamp;
-	private LinkedList<A3DResourceItem> Resource_List = new LinkedList<A3DResourceItem>();
+	private boolean Materialize(A3DResourceItem r)
+	{
+		A3DResourceItem m = Manifest.get(r.Tag);
+		boolean extracted = false;
+		if(Timestamp_Valid && (m != null) &&
+		   Source.GetPath(r.Tag).exists())
+		{
+			r.Length = m.Length;
+			r.Crc    = m.Crc;
+		}
+		else if(Extract(r, Manifest))
+		{
+			extracted = true;
+		}
+		else
+		{
+			return false;
+		}
 
-	public A3DResource(Context ctx, int timestamp)
+		if(Budget > 0)
+		{
+			long size = Source.GetPath(r.Tag).length();
+			Cache_Bytes.addAndGet(size - r.Size);
+			r.Size    = size;
+
+			// a file reused from an earlier session keeps its old
+			// modified time until Touch updates it
+			if(extracted) r.Touched = true;
+		}
+		r.Ready = true;
+
+		// resources may be extracted again after eviction
+		if(r.Verified)
+		{
+			return true;
+		}
+		r.Verified = true;
+
+		// the timestamp is written once every resource has been
+		// verified so the next session may trust the manifest
+		if((Pending.decrementAndGet() == 0) && (Timestamp_Valid == false))
+		{
+			if(WriteManifest(Manifest))
+			{
+				Timestamp_Valid = CopyRes(Timestamp, "timestamp.raw");
+			}
+		}
+		else if(extracted)
+		{
+			WriteManifest(Manifest);
+		}
+		return true;
+	}
+
+	private void DeleteRemoved(HashMap<String, A3DResourceItem> manifest)
 	{
-		Ctx = ctx;
-		Timestamp = timestamp;
+		for(String tag : manifest.keySet())
+		{
+			if(Resource_Map.containsKey(tag) == false)
+			{
+				Source.LogI(TAG, "Delete " + tag);
+				Source.Delete(tag);
+			}
+		}
 	}
 
-	public void Add(int id, String tag)
+	private boolean Extract(A3DResourceItem r,
+	                        HashMap<String, A3DResourceItem> manifest)
 	{
-		try
+		if(r.Ready)
 		{
-			Resource_List.add(new A3DResourceItem(id, tag));
+			// resumed from the journal
+			Stats.AddSkip();
+			return true;
 		}
-		catch(Exception e)
+		else if(Signature(r) == false)
+		{
+			return false;
+		}
+
+		A3DResourceItem m = manifest.get(r.Tag);
+		if((m != null) && (m.Length == r.Length) && (m.Crc == r.Crc) &&
+		   Source.GetPath(r.Tag).exists())
+		{
+			// unchanged
+			Stats.AddSkip();
+			AppendJournal(r);
+			return true;
+		}
+
+		if(CopyRes(r.Id, r.Codec, r.Tag) == false)
 		{
-			Log.e(TAG, "exception: " + e);
+			return false;
 		}
+		AppendJournal(r);
+		return true;
 	}
 
-	public void Update()
+	private boolean ExtractAll(final HashMap<String, A3DResourceItem> manifest)
 	{
-		// initialize native resources
-		if(IsTSValid() == 0)
+		int count   = Resource_List.size();
+		int workers = (Parallelism < count) ? Parallelism : count;
+		if(workers <= 1)
 		{
 			for(int i = 0; i < Resource_List.size(); ++i)
 			{
 				A3DResourceItem r = Resource_List.get(i);
-				CopyRes(r.Id, r.Tag);
+				if(Extract(r, manifest) == false)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// extract resources with a bounded pool of workers
+		// and stop at the first failure
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try
+		{
+			ExecutorCompletionService<Boolean> ecs;
+			ecs = new ExecutorCompletionService<Boolean>(pool);
+			for(int i = 0; i < Resource_List.size(); ++i)
+			{
+				final A3DResourceItem r = Resource_List.get(i);
+				ecs.submit(new Callable<Boolean>()
+				{
+					public Boolean call()
+					{
+						return Extract(r, manifest);
+					}
+				});
+			}
+
+			for(int i = 0; i < count; ++i)
+			{
+				if(ecs.take().get() == false)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+		finally
+		{
+			// wait for the remaining workers so that a retried
+			// Update does not race them on the same files
+			pool.shutdownNow();
+			boolean interrupted = false;
+			while(true)
+			{
+				try
+				{
+					if(pool.awaitTermination(1, TimeUnit.SECONDS))
+					{
+						break;
+					}
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean CopyRes(int src, String dst)
+	{
+		return CopyRes(src, CODEC_NONE, dst);
+	}
+
+	private boolean CopyRes(int src, int codec, String dst)
+	{
+		long t0    = System.nanoTime();
+		long bytes = -1;
+
+		// write then rename so that an interrupted copy never
+		// leaves a partial file under the final name
+		FileOutputStream stream = null;
+		try
+		{
+			stream = Source.OpenOutput(dst + TMP, false);
+			bytes  = CopyTo(src, codec, stream, null);
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+		}
+		finally
+		{
+			CloseQuietly(stream);
+		}
+
+		if(bytes < 0)
+		{
+			Source.Delete(dst + TMP);
+			return false;
+		}
+		else if(Rename(dst + TMP, dst) == false)
+		{
+			return false;
+		}
+
+		long dt = System.nanoTime() - t0;
+		long bps = (dt > 0) ? (1000000000L*bytes/dt) : 0;
+		Stats.AddCopy(dt, bytes);
+		Source.LogI(TAG, "CopyRes " + dst + ": " + bytes + " bytes, " + bps + " B/s");
+		return true;
+	}
+
+	private long CopyTo(int src, int codec, FileOutputStream dst, CRC32 crc)
+	{
+		if(codec != CODEC_NONE)
+		{
+			return CopyDecode(src, codec, dst, crc);
+		}
+
+		// uncompressed resources may be copied directly from the
+		// package with FileChannel.transferTo but compressed
+		// resources must be streamed
+		A3DResourceSource.Raw raw = null;
+		try
+		{
+			raw = Source.OpenRawFile(src);
+		}
+		catch(Exception e)
+		{
+			raw = null;
+		}
+
+		if(raw != null)
+		{
+			return CopyChannel(raw, dst);
+		}
+
+		return CopyStream(src, dst);
+	}
+
+	private long CopyChannel(A3DResourceSource.Raw raw, FileOutputStream dst)
+	{
+		try
+		{
+			// transferTo uses an absolute position in the package
+			FileChannel src    = raw.Stream.getChannel();
+			FileChannel dstc   = dst.getChannel();
+			long        offset = raw.Offset;
+			long        length = raw.Length;
+			long        pos    = 0;
+			while(pos < length)
+			{
+				long bytes = src.transferTo(offset + pos, length - pos, dstc);
+				if(bytes <= 0)
+				{
+					Source.LogE(TAG, "CopyChannel truncated");
+					return -1;
+				}
+				pos += bytes;
+			}
+			return length;
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return -1;
+		}
+		finally
+		{
+			CloseQuietly(raw);
+		}
+	}
+
+	private long CopyDecode(int src, int codec, FileOutputStream dst, CRC32 crc)
+	{
+		InputStream stream = null;
+		try
+		{
+			stream = new BufferedInputStream(Source.OpenRaw(src), BUFFER_SIZE);
+
+			A3DResourceDecoder decoder = new A3DResourceDecoder(codec);
+			long bytes = decoder.Decode(stream, dst, crc);
+			Source.LogI(TAG, "CopyDecode " + decoder.Bytes_In + " -> " + bytes + " bytes");
+			return bytes;
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return -1;
+		}
+		finally
+		{
+			CloseQuietly(stream);
+		}
+	}
+
+	private long CopyStream(int src, FileOutputStream dst)
+	{
+		InputStream stream = null;
+		try
+		{
+			stream = Source.OpenRaw(src);
+			byte[] buffer = GetBuffer(stream);
+			long   length = 0;
+			int bytes_read;
+			while((bytes_read = stream.read(buffer, 0, buffer.length)) != -1)
+			{
+				dst.write(buffer, 0, bytes_read);
+				length += bytes_read;
+			}
+			return length;
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return -1;
+		}
+		finally
+		{
+			CloseQuietly(stream);
+		}
+	}
+
+	private byte[] GetBuffer(InputStream stream)
+		throws IOException
+	{
+		// most resources are smaller than BUFFER_SIZE so the
+		// buffer is sized to the stream and rounded up to a
+		// power of two so that it is rarely replaced
+		int size = BUFFER_SIZE;
+		int available = stream.available();
+		if((available > 0) && (available < BUFFER_SIZE))
+		{
+			size = Integer.highestOneBit(available);
+			if(size < available)
+			{
+				size <<= 1;
 			}
-			CopyRes(Timestamp, "timestamp.raw");
 		}
+
+		byte[] buffer = Buffer.get();
+		if((buffer == null) || (buffer.length < size))
+		{
+			buffer = new byte[size];
+			Buffer.set(buffer);
+		}
+		return buffer;
 	}
 
-	private void CopyRes(int src, String dst)
+	private static void CloseQuietly(Closeable c)
 	{
-		Log.i(TAG, "CopyRes " + dst);
+		try { if(c != null) c.close(); }
+		catch(Exception e) { }
+	}
+
+	private boolean Signature(A3DResourceItem r)
+	{
+		long        t0     = System.nanoTime();
+		InputStream stream = null;
 		try
 		{
-			Resources r = Ctx.getResources();
-			InputStream      stream1 = r.openRawResource(src);
-			FileOutputStream stream2 = Ctx.openFileOutput(dst, Ctx.MODE_PRIVATE);
-			byte[] buffer = new byte[4096];   // 4KB buffer
+			stream = Source.OpenRaw(r.Id);
+			CRC32  crc    = new CRC32();
+			long   length = 0;
+			byte[] buffer = GetBuffer(stream);
 			int bytes_read;
-			while((bytes_read = stream1.read(buffer, 0, 4096)) != -1)
+			while((bytes_read = stream.read(buffer, 0, buffer.length)) != -1)
+			{
+				crc.update(buffer, 0, bytes_read);
+				length += bytes_read;
+			}
+			r.Length = length;
+			r.Crc    = crc.getValue();
+			Stats.AddSignature(System.nanoTime() - t0, length);
+			return true;
+		}
+		catch(Exception e)
+		{
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+		finally
+		{
+			CloseQuietly(stream);
+		}
+	}
+
+	private HashMap<String, A3DResourceItem> ReadManifest()
+	{
+		HashMap<String, A3DResourceItem> manifest;
+		manifest = new HashMap<String, A3DResourceItem>();
+		ReadManifest(MANIFEST, manifest);
+		return manifest;
+	}
+
+	private long ReadManifest(String name, HashMap<String, A3DResourceItem> manifest)
+	{
+		// each line of the manifest is "crc length tag" and the
+		// optional header "# stamp" identifies the timestamp
+		long           stamp  = -1;
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(Source.OpenInput(name), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				String[] field = line.split(" ", 3);
+				try
+				{
+					if((field.length == 2) && field[0].equals("#"))
+					{
+						stamp = Long.parseLong(field[1]);
+						continue;
+					}
+					else if(field.length != 3)
+					{
+						continue;
+					}
+
+					A3DResourceItem m = new A3DResourceItem(0, field[2], CODEC_NONE);
+					m.Crc    = Long.parseLong(field[0]);
+					m.Length = Long.parseLong(field[1]);
+					manifest.put(m.Tag, m);
+				}
+				catch(NumberFormatException e)
+				{
+					// skip lines truncated by an interrupted write
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			// missing manifest
+		}
+		finally
+		{
+			CloseQuietly(reader);
+		}
+		return stamp;
+	}
+
+	private synchronized boolean WriteManifest(HashMap<String, A3DResourceItem> manifest)
+	{
+		PrintWriter writer = null;
+		try
+		{
+			writer = new PrintWriter(new OutputStreamWriter(Source.OpenOutput(MANIFEST + TMP, false), "UTF-8"));
+			for(int i = 0; i < Resource_List.size(); ++i)
+			{
+				A3DResourceItem r = Resource_List.get(i);
+				// keep the previous signature of lazy
+				// resources which have not been verified
+				A3DResourceItem m = r.Ready ? r : manifest.get(r.Tag);
+				if(m != null)
+				{
+					writer.print(m.Crc + " " + m.Length + " " + m.Tag + "\n");
+				}
+			}
+			writer.flush();
+			if(writer.checkError())
 			{
-				stream2.write(buffer, 0, bytes_read);
+				return false;
 			}
 		}
 		catch(Exception e)
 		{
-			Log.e(TAG, "exception: " + e);
+			Source.LogE(TAG, "exception: " + e);
+			return false;
+		}
+		finally
+		{
+			if(writer != null) writer.close();
+		}
+
+		return Rename(MANIFEST + TMP, MANIFEST);
+	}
+
+	private boolean Rename(String src, String dst)
+	{
+		// rename is atomic so dst is either the old or new file
+		if(Source.GetPath(src).renameTo(Source.GetPath(dst)) == false)
+		{
+			Source.LogE(TAG, "Rename " + src + " failed");
+			Source.Delete(src);
+			return false;
 		}
+		return true;
 	}
 
 	private int IsTSValid()
 	{
+		long t0     = System.nanoTime();
+		int  status = CompareTS();
+		Stats.AddValidate(System.nanoTime() - t0);
+		return status;
+	}
+
+	private int CompareTS()
+	{
+		InputStream     stream1 = null;
+		FileInputStream stream2 = null;
 		try
 		{
-			Resources r = Ctx.getResources();
-			InputStream     stream1 = r.openRawResource(Timestamp);
-			FileInputStream stream2 = Ctx.openFileInput("timestamp.raw");
+			stream1 = Source.OpenRaw(Timestamp);
+			stream2 = Source.OpenInput("timestamp.raw");
 			byte[] ts1 = new byte[32];   // 32 byte buffer
 			byte[] ts2 = new byte[32];   // 32 byte buffer
 			int sz1    = stream1.read(ts1, 0, 32);
@@ -135,5 +1380,10 @@ public class A3DResource
 		{
 			return 0;
 		}
+		finally
+		{
+			CloseQuietly(stream1);
+			CloseQuietly(stream2);
+		}
 	}
 }
@@ -0,0 +1,476 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Measures A3DResource.Update in a plain JVM. The raw
+ * resources and the files directory are temporary files and
+ * each Update uses a new A3DResource as an app would on
+ * startup.
+ *
+ * usage: A3DResourceBench [command ...]
+ *   files:NxB     N resources of B bytes and a new timestamp
+ *   workers:N     extraction workers
+ *   repeat:N      Update passes per measurement
+ *   cold          Update with no extracted files
+ *   warm          Update with no changes
+ *   partial:N     Update after N resources and the timestamp change
+ *
+ * MB/s counts the bytes read for signatures and the bytes
+ * copied. The copy count includes timestamp.raw. Allocations
+ * are counted for the thread which calls Update so workers:1
+ * is required for the full allocation rate.
+ */
+public class A3DResourceBench
+{
+	private static final String[] DEFAULT_SCRIPT =
+	{
+		"workers:1", "repeat:5",
+		"files:16x65536",   "cold", "warm", "partial:1",
+		"files:256x4096",   "cold", "warm", "partial:16",
+		"files:4x4194304",  "cold", "warm", "partial:1",
+		"workers:4", "files:256x4096", "cold", "partial:16"
+	};
+
+	/*
+	 * Raw resources are files registered with AddRaw and the
+	 * private files are written to Files.
+	 */
+	private static class A3DBenchSource implements A3DResourceSource
+	{
+		private File Files;
+		private ArrayList<File>          Raw_List = new ArrayList<File>();
+		private HashMap<String, Integer> Raw_Map  = new HashMap<String, Integer>();
+
+		A3DBenchSource(File files)
+		{
+			Files = files;
+		}
+
+		public int AddRaw(String name, File file)
+		{
+			// ids start at 1 since 0 is not a valid id
+			Raw_List.add(file);
+			Raw_Map.put(name, Raw_List.size());
+			return Raw_List.size();
+		}
+
+		private File GetRaw(int id) throws IOException
+		{
+			if((id < 1) || (id > Raw_List.size()))
+			{
+				throw new IOException("invalid id " + id);
+			}
+			return Raw_List.get(id - 1);
+		}
+
+		public InputStream OpenRaw(int id) throws IOException
+		{
+			return new FileInputStream(GetRaw(id));
+		}
+
+		public Raw OpenRawFile(int id) throws IOException
+		{
+			File file = GetRaw(id);
+			return new Raw(new FileInputStream(file), file.getAbsolutePath(),
+			               0, file.length(), null);
+		}
+
+		public int GetRawId(String name)
+		{
+			Integer id = Raw_Map.get(name);
+			return (id == null) ? 0 : id;
+		}
+
+		public FileInputStream OpenInput(String name) throws IOException
+		{
+			return new FileInputStream(GetPath(name));
+		}
+
+		public FileOutputStream OpenOutput(String name, boolean append) throws IOException
+		{
+			return new FileOutputStream(GetPath(name), append);
+		}
+
+		public File GetPath(String name)
+		{
+			return new File(Files, name);
+		}
+
+		public boolean Delete(String name)
+		{
+			return GetPath(name).delete();
+		}
+
+		public void LogI(String tag, String msg)
+		{
+			// per resource messages would dominate the output
+		}
+
+		public void LogE(String tag, String msg)
+		{
+			System.err.println(tag + ": " + msg);
+		}
+	}
+
+	private File           Root;
+	private File           Raw_Dir;
+	private File           Files_Dir;
+	private A3DBenchSource Source;
+	private Random         Rand = new Random(1);
+
+	private int      Workers = 1;
+	private int      Repeat  = 5;
+	private int      Stamp   = 0;
+	private int      Timestamp_Id;
+	private int[]    Ids     = new int[0];
+	private String[] Tags    = new String[0];
+	private int      Size    = 0;
+
+	// com.sun.management.ThreadMXBean when available
+	private Object Thread_Bean;
+	private Method Allocated_Bytes;
+
+	public static void main(String[] args)
+	{
+		A3DResourceBench bench = new A3DResourceBench();
+		bench.Run((args.length > 0) ? args : DEFAULT_SCRIPT);
+	}
+
+	public A3DResourceBench()
+	{
+		try
+		{
+			// reflection since java.lang.management is not
+			// available on Android
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			Class<?> bean    = Class.forName("com.sun.management.ThreadMXBean");
+			Thread_Bean      = factory.getMethod("getThreadMXBean").invoke(null);
+			Allocated_Bytes  = bean.getMethod("getThreadAllocatedBytes", long.class);
+			if(bean.isInstance(Thread_Bean) == false)
+			{
+				Allocated_Bytes = null;
+			}
+		}
+		catch(Exception e)
+		{
+			Allocated_Bytes = null;
+		}
+	}
+
+	public void Run(String[] script)
+	{
+		try
+		{
+			Root = File.createTempFile("A3DResourceBench", "");
+			if((Root.delete() == false) || (Root.mkdir() == false))
+			{
+				System.out.println("failed to create " + Root);
+				return;
+			}
+			Raw_Dir   = new File(Root, "raw");
+			Files_Dir = new File(Root, "files");
+			Raw_Dir.mkdir();
+			Files_Dir.mkdir();
+			Source = new A3DBenchSource(Files_Dir);
+		}
+		catch(IOException e)
+		{
+			System.out.println("exception: " + e);
+			return;
+		}
+
+		try
+		{
+			for(int i = 0; i < script.length; ++i)
+			{
+				String cmd = script[i];
+				String arg = "";
+				int    idx = cmd.indexOf(':');
+				if(idx >= 0)
+				{
+					arg = cmd.substring(idx + 1);
+					cmd = cmd.substring(0, idx);
+				}
+
+				if(cmd.equals("files"))
+				{
+					int x = arg.indexOf('x');
+					CreateFiles(Integer.parseInt(arg.substring(0, x)),
+					            Integer.parseInt(arg.substring(x + 1)));
+				}
+				else if(cmd.equals("workers"))
+				{
+					Workers = Integer.parseInt(arg);
+				}
+				else if(cmd.equals("repeat"))
+				{
+					Repeat = Integer.parseInt(arg);
+				}
+				else if(cmd.equals("cold"))
+				{
+					Measure(script[i], 0, true);
+				}
+				else if(cmd.equals("warm"))
+				{
+					Measure(script[i], 0, false);
+				}
+				else if(cmd.equals("partial"))
+				{
+					Measure(script[i], Integer.parseInt(arg), false);
+				}
+				else
+				{
+					System.out.println("unknown command " + script[i]);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			System.out.println("exception: " + e);
+		}
+		finally
+		{
+			DeleteTree(Root);
+		}
+	}
+
+	private void CreateFiles(int count, int size)
+		throws IOException
+	{
+		// extracted files from an earlier set are removed so
+		// that the next measurement starts cold
+		DeleteTree(Raw_Dir);
+		DeleteTree(Files_Dir);
+		Raw_Dir.mkdir();
+		Files_Dir.mkdir();
+		Source = new A3DBenchSource(Files_Dir);
+
+		Ids  = new int[count];
+		Tags = new String[count];
+		Size = size;
+		byte[] data = new byte[size];
+		for(int i = 0; i < count; ++i)
+		{
+			Rand.nextBytes(data);
+			File file = new File(Raw_Dir, "res" + i);
+			Write(file, data);
+			Tags[i] = "res" + i + ".dat";
+			Ids[i]  = Source.AddRaw("res" + i, file);
+		}
+
+		File ts = new File(Raw_Dir, "timestamp");
+		Timestamp_Id = Source.AddRaw("timestamp", ts);
+		Touch(0);
+	}
+
+	private void Touch(int count)
+		throws IOException
+	{
+		// change the first byte of count resources and write
+		// a new timestamp as a build would
+		for(int i = 0; i < count; ++i)
+		{
+			File file = new File(Raw_Dir, "res" + i);
+			byte[] data = Read(file);
+			data[0] = (byte) (data[0] + 1);
+			Write(file, data);
+		}
+
+		++Stamp;
+		Write(new File(Raw_Dir, "timestamp"), ("A3DResourceBench " + Stamp).getBytes("UTF-8"));
+	}
+
+	private void Measure(String name, int changed, boolean cold)
+		throws IOException
+	{
+		if(cold == false)
+		{
+			// extract any missing resources so that the passes
+			// only copy the changed resources
+			Update(new A3DResourceStats());
+		}
+
+		long   min   = Long.MAX_VALUE;
+		long   sum   = 0;
+		long   alloc = 0;
+		A3DResourceStats stats = new A3DResourceStats();
+		for(int i = 0; i < Repeat; ++i)
+		{
+			if(cold)
+			{
+				DeleteTree(Files_Dir);
+				Files_Dir.mkdir();
+			}
+			else if(changed > 0)
+			{
+				Touch(changed);
+			}
+
+			long a0 = Allocated();
+			long t0 = System.nanoTime();
+			if(Update(stats) == false)
+			{
+				System.out.println(name + ": Update failed");
+				return;
+			}
+			long dt = System.nanoTime() - t0;
+			long a1 = Allocated();
+
+			min    = Math.min(min, dt);
+			sum   += dt;
+			alloc += ((a0 < 0) || (a1 < 0)) ? 0 : a1 - a0;
+		}
+
+		if(Repeat <= 0)
+		{
+			return;
+		}
+
+		// throughput counts the bytes which were read to compute
+		// signatures and the bytes which were copied
+		long   avg   = sum/Repeat;
+		long   bytes = stats.Signature_Bytes.get() + stats.Copy_Bytes.get();
+		String line  = name + " " + Ids.length + "x" + Size + " workers=" + Workers +
+		               ": avg=" + Millis(avg) + "ms min=" + Millis(min) + "ms " +
+		               String.format("%.0f", 1.0e9*Ids.length/avg) + " res/s" +
+		               " io=" + bytes/Repeat/1024 + "KB/update " +
+		               String.format("%.1f", 1.0e9*bytes/sum/1048576.0) + " MB/s" +
+		               " copy=" + stats.Copy_Count.get()/Repeat +
+		               " skip=" + stats.Skip_Count.get()/Repeat;
+		if(Allocated() >= 0)
+		{
+			long per = alloc/Repeat;
+			line += " alloc=" + per/1024 + "KB/update " +
+			        String.format("%.1f", 1.0e9*alloc/sum/1048576.0) + " MB/s";
+		}
+		else
+		{
+			line += " alloc=n/a";
+		}
+		System.out.println(line);
+	}
+
+	private boolean Update(A3DResourceStats stats)
+	{
+		A3DResource res = new A3DResource(Source, Timestamp_Id, Workers);
+		for(int i = 0; i < Ids.length; ++i)
+		{
+			res.Add(Ids[i], Tags[i]);
+		}
+		boolean status = res.Update();
+
+		A3DResourceStats s = res.GetStats();
+		stats.Copy_Count.addAndGet(s.Copy_Count.get());
+		stats.Copy_Bytes.addAndGet(s.Copy_Bytes.get());
+		stats.Signature_Bytes.addAndGet(s.Signature_Bytes.get());
+		stats.Skip_Count.addAndGet(s.Skip_Count.get());
+		return status;
+	}
+
+	private long Allocated()
+	{
+		if(Allocated_Bytes == null)
+		{
+			return -1;
+		}
+
+		try
+		{
+			Object bytes = Allocated_Bytes.invoke(Thread_Bean, Thread.currentThread().getId());
+			return ((Long) bytes).longValue();
+		}
+		catch(Exception e)
+		{
+			return -1;
+		}
+	}
+
+	private static String Millis(long ns)
+	{
+		return String.format("%.2f", ns/1.0e6);
+	}
+
+	private static byte[] Read(File file)
+		throws IOException
+	{
+		byte[]          data   = new byte[(int) file.length()];
+		FileInputStream stream = new FileInputStream(file);
+		try
+		{
+			int pos = 0;
+			while(pos < data.length)
+			{
+				int bytes_read = stream.read(data, pos, data.length - pos);
+				if(bytes_read < 0)
+				{
+					throw new IOException("truncated " + file);
+				}
+				pos += bytes_read;
+			}
+			return data;
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	private static void Write(File file, byte[] data)
+		throws IOException
+	{
+		FileOutputStream stream = new FileOutputStream(file);
+		try
+		{
+			stream.write(data);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	private static void DeleteTree(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(int i = 0; i < children.length; ++i)
+			{
+				DeleteTree(children[i]);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A read-only view of a resource which is mapped in place.
+ * Offset and Length describe the range of the file at Path
+ * (e.g. the package) which contains the resource so the
+ * native layer may use either the direct buffer or open the
+ * file itself.
+ */
+public class A3DResourceBuffer
+{
+	public final MappedByteBuffer Buffer;
+	public final String           Path;
+	public final long             Offset;
+	public final long             Length;
+
+	A3DResourceBuffer(MappedByteBuffer buffer, String path, long offset, long length)
+	{
+		Buffer = buffer;
+		Path   = path;
+		Offset = offset;
+		Length = length;
+	}
+
+	public static A3DResourceBuffer Map(FileChannel channel, String path,
+	                                    long offset, long length)
+		throws IOException
+	{
+		// the mapping remains valid after the channel is closed
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		return new A3DResourceBuffer(buffer, path, offset, length);
+	}
+
+	public static A3DResourceBuffer MapFile(File file)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			return Map(channel, file.getAbsolutePath(), 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
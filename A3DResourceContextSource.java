@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import android.util.Log;
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.AssetFileDescriptor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Reads raw resources from the package and writes files to
+ * the private files directory of a Context.
+ */
+class A3DResourceContextSource implements A3DResourceSource
+{
+	private Context Ctx;
+
+	public A3DResourceContextSource(Context ctx)
+	{
+		Ctx = ctx;
+	}
+
+	public InputStream OpenRaw(int id) throws IOException
+	{
+		return Ctx.getResources().openRawResource(id);
+	}
+
+	public Raw OpenRawFile(int id) throws IOException
+	{
+		AssetFileDescriptor afd;
+		try
+		{
+			afd = Ctx.getResources().openRawResourceFd(id);
+		}
+		catch(Resources.NotFoundException e)
+		{
+			// compressed in the package
+			return null;
+		}
+
+		if(afd == null)
+		{
+			return null;
+		}
+		else if(afd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH)
+		{
+			afd.close();
+			return null;
+		}
+
+		try
+		{
+			// uncompressed raw resources are stored in the base
+			// package
+			return new Raw(afd.createInputStream(),
+			               Ctx.getApplicationInfo().sourceDir,
+			               afd.getStartOffset(), afd.getLength(), afd);
+		}
+		catch(IOException e)
+		{
+			afd.close();
+			throw e;
+		}
+	}
+
+	public int GetRawId(String name)
+	{
+		return Ctx.getResources().getIdentifier(name, "raw", Ctx.getPackageName());
+	}
+
+	public FileInputStream OpenInput(String name) throws IOException
+	{
+		return Ctx.openFileInput(name);
+	}
+
+	public FileOutputStream OpenOutput(String name, boolean append) throws IOException
+	{
+		int mode = Context.MODE_PRIVATE;
+		if(append)
+		{
+			mode |= Context.MODE_APPEND;
+		}
+		return Ctx.openFileOutput(name, mode);
+	}
+
+	public File GetPath(String name)
+	{
+		return Ctx.getFileStreamPath(name);
+	}
+
+	public boolean Delete(String name)
+	{
+		return Ctx.deleteFile(name);
+	}
+
+	public void LogI(String tag, String msg)
+	{
+		Log.i(tag, msg);
+	}
+
+	public void LogE(String tag, String msg)
+	{
+		Log.e(tag, msg);
+	}
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Decodes a compressed resource while streaming. A reader
+ * thread reads the next chunk while the calling thread
+ * decompresses and writes the previous chunk.
+ *
+ * CODEC_DEFLATE expects a zlib stream and CODEC_LZ4 expects
+ * the LZ4 frame format (e.g. as written by the lz4 tool).
+ */
+class A3DResourceDecoder
+{
+	private static final String TAG = "A3DResourceDecoder";
+
+	private static final int CHUNKS      = 2;       // double buffered
+	private static final int CHUNK_SIZE  = 65536;   // 64KB deflate chunks
+	private static final int LZ4_MAGIC   = 0x184D2204;
+	private static final int LZ4_HISTORY = 65536;   // 64KB linked block window
+
+	private static class Chunk
+	{
+		public byte[]      Data;
+		public int         Length;
+		public int         Block_Max;
+		public boolean     Stored;
+		public boolean     End;
+		public IOException Error;
+	}
+
+	private static class CountingInputStream extends FilterInputStream
+	{
+		public volatile long Count = 0;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if(b >= 0) ++Count;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int bytes = super.read(b, off, len);
+			if(bytes > 0) Count += bytes;
+			return bytes;
+		}
+	}
+
+	private int Codec;
+	private int Allocated = 0;
+	private ArrayBlockingQueue<Chunk> Free = new ArrayBlockingQueue<Chunk>(CHUNKS);
+	private ArrayBlockingQueue<Chunk> Full = new ArrayBlockingQueue<Chunk>(CHUNKS + 1);
+
+	public long Bytes_In  = 0;
+	public long Bytes_Out = 0;
+
+	A3DResourceDecoder(int codec)
+	{
+		Codec = codec;
+	}
+
+	public long Decode(InputStream in, OutputStream out, CRC32 crc)
+		throws IOException
+	{
+		if((Codec != A3DResource.CODEC_DEFLATE) &&
+		   (Codec != A3DResource.CODEC_LZ4))
+		{
+			throw new IOException("invalid codec " + Codec);
+		}
+
+		final CountingInputStream counter = new CountingInputStream(in);
+		Thread reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				Read(counter);
+			}
+		}, TAG);
+		reader.start();
+
+		try
+		{
+			if(Codec == A3DResource.CODEC_DEFLATE)
+			{
+				DecodeDeflate(out, crc);
+			}
+			else
+			{
+				DecodeLz4(out, crc);
+			}
+			Bytes_In = counter.Count;
+			return Bytes_Out;
+		}
+		finally
+		{
+			reader.interrupt();
+			try { reader.join(); }
+			catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+		}
+	}
+
+	/***********************************************************
+	* Reader thread                                            *
+	***********************************************************/
+
+	private void Read(InputStream in)
+	{
+		Chunk end = new Chunk();
+		try
+		{
+			if(Codec == A3DResource.CODEC_DEFLATE)
+			{
+				ReadChunks(in);
+			}
+			else
+			{
+				ReadFrames(new DataInputStream(in));
+			}
+			end.End = true;
+		}
+		catch(InterruptedException e)
+		{
+			// decoder stopped
+			return;
+		}
+		catch(IOException e)
+		{
+			end.Error = e;
+		}
+
+		// Full has room for every chunk plus the end
+		Full.offer(end);
+	}
+
+	private Chunk Obtain(int size)
+		throws InterruptedException
+	{
+		Chunk c = Free.poll();
+		if(c == null)
+		{
+			if(Allocated < CHUNKS)
+			{
+				++Allocated;
+				c = new Chunk();
+			}
+			else
+			{
+				c = Free.take();
+			}
+		}
+
+		if((c.Data == null) || (c.Data.length < size))
+		{
+			c.Data = new byte[size];
+		}
+		return c;
+	}
+
+	private void ReadChunks(InputStream in)
+		throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			Chunk c = Obtain(CHUNK_SIZE);
+			int bytes = in.read(c.Data, 0, CHUNK_SIZE);
+			if(bytes < 0)
+			{
+				Free.offer(c);
+				return;
+			}
+			c.Length = bytes;
+			Full.put(c);
+		}
+	}
+
+	private static int ReadLE32(DataInputStream in)
+		throws IOException
+	{
+		return Integer.reverseBytes(in.readInt());
+	}
+
+	private void ReadFrames(DataInputStream in)
+		throws IOException, InterruptedException
+	{
+		// the stream may contain several concatenated frames
+		int b0;
+		while((b0 = in.read()) != -1)
+		{
+			int magic = b0 |
+			            (in.readUnsignedByte() << 8)  |
+			            (in.readUnsignedByte() << 16) |
+			            (in.readUnsignedByte() << 24);
+			if(magic != LZ4_MAGIC)
+			{
+				throw new IOException("invalid lz4 frame");
+			}
+
+			int flg = in.readUnsignedByte();
+			int bd  = in.readUnsignedByte();
+			int bsz = (bd >> 4) & 7;
+			if(((flg >> 6) != 1) || (bsz < 4))
+			{
+				throw new IOException("invalid lz4 frame descriptor");
+			}
+			else if((flg & 0x01) != 0)
+			{
+				throw new IOException("unsupported lz4 dictionary");
+			}
+
+			// 4=64KB, 5=256KB, 6=1MB, 7=4MB
+			int block_max = 1 << (8 + 2*bsz);
+			if((flg & 0x08) != 0)
+			{
+				in.readLong();   // content size
+			}
+			in.readUnsignedByte();   // header checksum
+
+			while(true)
+			{
+				int size = ReadLE32(in);
+				if(size == 0)
+				{
+					break;   // end mark
+				}
+
+				boolean stored = (size & 0x80000000) != 0;
+				size &= 0x7FFFFFFF;
+				if(size > block_max)
+				{
+					throw new IOException("invalid lz4 block size");
+				}
+
+				Chunk c = Obtain(size);
+				in.readFully(c.Data, 0, size);
+				c.Length    = size;
+				c.Block_Max = block_max;
+				c.Stored    = stored;
+				if((flg & 0x10) != 0)
+				{
+					in.readInt();   // block checksum
+				}
+				Full.put(c);
+			}
+
+			if((flg & 0x04) != 0)
+			{
+				in.readInt();   // content checksum
+			}
+		}
+	}
+
+	/***********************************************************
+	* Decoder thread                                           *
+	***********************************************************/
+
+	private Chunk Take()
+		throws IOException
+	{
+		try
+		{
+			Chunk c = Full.take();
+			if(c.Error != null)
+			{
+				throw c.Error;
+			}
+			return c.End ? null : c;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("decode interrupted");
+		}
+	}
+
+	private void Write(OutputStream out, CRC32 crc, byte[] b, int off, int len)
+		throws IOException
+	{
+		out.write(b, off, len);
+		if(crc != null)
+		{
+			crc.update(b, off, len);
+		}
+		Bytes_Out += len;
+	}
+
+	private void DecodeDeflate(OutputStream out, CRC32 crc)
+		throws IOException
+	{
+		Inflater inflater = new Inflater();
+		byte[]   buffer   = new byte[CHUNK_SIZE];
+		try
+		{
+			Chunk c;
+			while((c = Take()) != null)
+			{
+				inflater.setInput(c.Data, 0, c.Length);
+				int bytes;
+				while((bytes = inflater.inflate(buffer)) > 0)
+				{
+					Write(out, crc, buffer, 0, bytes);
+				}
+				if(inflater.needsDictionary())
+				{
+					throw new IOException("unsupported deflate dictionary");
+				}
+				Free.offer(c);
+			}
+
+			if(inflater.finished() == false)
+			{
+				throw new EOFException("truncated deflate stream");
+			}
+		}
+		catch(DataFormatException e)
+		{
+			throw new IOException("invalid deflate stream: " + e.getMessage());
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	private void DecodeLz4(OutputStream out, CRC32 crc)
+		throws IOException
+	{
+		// linked blocks may refer to the previous 64KB of output
+		byte[] window = new byte[0];
+		int    pos    = 0;
+		Chunk  c;
+		while((c = Take()) != null)
+		{
+			if(window.length < LZ4_HISTORY + c.Block_Max)
+			{
+				byte[] w = new byte[LZ4_HISTORY + c.Block_Max];
+				System.arraycopy(window, 0, w, 0, pos);
+				window = w;
+			}
+
+			int bytes;
+			if(c.Stored)
+			{
+				System.arraycopy(c.Data, 0, window, pos, c.Length);
+				bytes = c.Length;
+			}
+			else
+			{
+				bytes = DecodeBlock(c.Data, c.Length, window, pos,
+				                    pos + c.Block_Max) - pos;
+			}
+			Free.offer(c);
+
+			Write(out, crc, window, pos, bytes);
+			pos += bytes;
+			if(pos > LZ4_HISTORY)
+			{
+				System.arraycopy(window, pos - LZ4_HISTORY, window, 0, LZ4_HISTORY);
+				pos = LZ4_HISTORY;
+			}
+		}
+	}
+
+	private static int DecodeBlock(byte[] src, int src_len,
+	                               byte[] dst, int dp, int dst_end)
+		throws IOException
+	{
+		int sp = 0;
+		while(sp < src_len)
+		{
+			int token = src[sp++] & 0xFF;
+
+			// literals
+			int len = token >>> 4;
+			if(len == 15)
+			{
+				int b;
+				do
+				{
+					if(sp >= src_len) throw new IOException("invalid lz4 block");
+					b    = src[sp++] & 0xFF;
+					len += b;
+				} while(b == 255);
+			}
+			if((sp + len > src_len) || (dp + len > dst_end))
+			{
+				throw new IOException("invalid lz4 literals");
+			}
+			System.arraycopy(src, sp, dst, dp, len);
+			sp += len;
+			dp += len;
+
+			// the last sequence only contains literals
+			if(sp >= src_len)
+			{
+				break;
+			}
+
+			// match
+			if(sp + 2 > src_len)
+			{
+				throw new IOException("invalid lz4 offset");
+			}
+			int offset = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+			sp += 2;
+			if((offset == 0) || (offset > dp))
+			{
+				throw new IOException("invalid lz4 offset");
+			}
+
+			len = token & 0x0F;
+			if(len == 15)
+			{
+				int b;
+				do
+				{
+					if(sp >= src_len) throw new IOException("invalid lz4 block");
+					b    = src[sp++] & 0xFF;
+					len += b;
+				} while(b == 255);
+			}
+			len += 4;
+			if(dp + len > dst_end)
+			{
+				throw new IOException("invalid lz4 match");
+			}
+
+			int mp = dp - offset;
+			if(offset >= len)
+			{
+				System.arraycopy(dst, mp, dst, dp, len);
+				dp += len;
+			}
+			else
+			{
+				// overlapping match repeats the pattern
+				for(int i = 0; i < len; ++i)
+				{
+					dst[dp++] = dst[mp++];
+				}
+			}
+		}
+		return dp;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/*
+ * A packed resource archive is a header followed by the
+ * resource data.
+ *
+ * header: magic, version, count, entry[count]
+ * entry:  tag (modified UTF-8), offset, length, crc
+ *
+ * Offsets are relative to the start of the archive. The
+ * archive is read with positioned reads on a single handle.
+ */
+public class A3DResourcePack
+{
+	public static final int MAGIC   = 0x41334450;   // A3DP
+	public static final int VERSION = 1;
+
+	public static class Entry
+	{
+		public final String Tag;
+		public final long   Offset;
+		public final long   Length;
+		public final int    Crc;
+
+		Entry(String tag, long offset, long length, int crc)
+		{
+			Tag    = tag;
+			Offset = offset;
+			Length = length;
+			Crc    = crc;
+		}
+	}
+
+	private RandomAccessFile       Pack_File;
+	private FileChannel            Pack_Channel;
+	private HashMap<String, Entry> Index;
+
+	private A3DResourcePack(RandomAccessFile file, HashMap<String, Entry> index)
+	{
+		Pack_File    = file;
+		Pack_Channel = file.getChannel();
+		Index        = index;
+	}
+
+	public static A3DResourcePack Open(File file)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			// the channel position is not used by Read so the
+			// index is read through a separate stream
+			DataInputStream in;
+			in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+			if((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+			{
+				throw new IOException("invalid pack " + file);
+			}
+
+			long size  = raf.length();
+			int  count = in.readInt();
+			HashMap<String, Entry> index = new HashMap<String, Entry>(2*count);
+			for(int i = 0; i < count; ++i)
+			{
+				Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt());
+				if((e.Offset < 0) || (e.Length < 0) || (e.Offset + e.Length > size))
+				{
+					throw new EOFException("truncated pack " + file);
+				}
+				index.put(e.Tag, e);
+			}
+
+			return new A3DResourcePack(raf, index);
+		}
+		catch(IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	public void Close()
+	{
+		try { Pack_File.close(); }
+		catch(IOException e) { }
+	}
+
+	public Entry Find(String tag)
+	{
+		return Index.get(tag);
+	}
+
+	/*
+	 * Reads up to dst.remaining() bytes of the resource
+	 * starting at pos. Returns the number of bytes read
+	 * or -1 at the end of the resource.
+	 */
+	public int Read(Entry e, long pos, ByteBuffer dst)
+		throws IOException
+	{
+		if(pos >= e.Length)
+		{
+			return -1;
+		}
+
+		int limit = dst.limit();
+		if(dst.remaining() > e.Length - pos)
+		{
+			dst.limit(dst.position() + (int) (e.Length - pos));
+		}
+
+		try
+		{
+			int total = 0;
+			while(dst.hasRemaining())
+			{
+				int bytes = Pack_Channel.read(dst, e.Offset + pos + total);
+				if(bytes < 0)
+				{
+					throw new EOFException("truncated pack " + e.Tag);
+				}
+				total += bytes;
+			}
+			return total;
+		}
+		finally
+		{
+			dst.limit(limit);
+		}
+	}
+
+	public ByteBuffer Read(String tag)
+		throws IOException
+	{
+		Entry e = Find(tag);
+		if(e == null)
+		{
+			return null;
+		}
+
+		ByteBuffer dst = ByteBuffer.allocateDirect((int) e.Length);
+		Read(e, 0, dst);
+		dst.flip();
+		return dst;
+	}
+
+	/*
+	 * Builds the header for the resources which are written
+	 * in order immediately after it.
+	 */
+	static byte[] Header(String[] tags, long[] lengths, int[] crcs)
+		throws IOException
+	{
+		// the header size does not depend on the offsets
+		long offset = Header(tags, lengths, crcs, 0).length;
+		return Header(tags, lengths, crcs, offset);
+	}
+
+	private static byte[] Header(String[] tags, long[] lengths, int[] crcs,
+	                             long offset)
+		throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream      out   = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(tags.length);
+		for(int i = 0; i < tags.length; ++i)
+		{
+			out.writeUTF(tags[i]);
+			out.writeLong(offset);
+			out.writeLong(lengths[i]);
+			out.writeInt(crcs[i]);
+			offset += lengths[i];
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Raw resources, private files and logging used by
+ * A3DResource. The Android implementation wraps a Context
+ * while A3DResourceBench uses temporary files.
+ */
+interface A3DResourceSource
+{
+	/*
+	 * An uncompressed raw resource which occupies Length bytes
+	 * at Offset in the file at Path which is read by Stream.
+	 */
+	public static class Raw implements Closeable
+	{
+		public final FileInputStream Stream;
+		public final String          Path;
+		public final long            Offset;
+		public final long            Length;
+		private Closeable            Owner;
+
+		public Raw(FileInputStream stream, String path, long offset,
+		           long length, Closeable owner)
+		{
+			Stream = stream;
+			Path   = path;
+			Offset = offset;
+			Length = length;
+			Owner  = owner;
+		}
+
+		public void close() throws IOException
+		{
+			try
+			{
+				Stream.close();
+			}
+			finally
+			{
+				if(Owner != null) Owner.close();
+			}
+		}
+	}
+
+	public InputStream OpenRaw(int id) throws IOException;
+
+	// returns null when the resource must be streamed
+	public Raw OpenRawFile(int id) throws IOException;
+
+	// returns 0 when name is not a raw resource
+	public int GetRawId(String name);
+
+	public FileInputStream OpenInput(String name) throws IOException;
+	public FileOutputStream OpenOutput(String name, boolean append) throws IOException;
+	public File GetPath(String name);
+	public boolean Delete(String name);
+
+	public void LogI(String tag, String msg);
+	public void LogE(String tag, String msg);
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Timing counters for the resource extraction startup path.
+ * Counters are cumulative until Reset so that cold, warm and
+ * partial updates may be measured separately.
+ */
+public class A3DResourceStats
+{
+	public final AtomicLong Update_Count    = new AtomicLong(0);
+	public final AtomicLong Update_Nanos    = new AtomicLong(0);
+	public final AtomicLong Validate_Count  = new AtomicLong(0);
+	public final AtomicLong Validate_Nanos  = new AtomicLong(0);
+	public final AtomicLong Signature_Count = new AtomicLong(0);
+	public final AtomicLong Signature_Nanos = new AtomicLong(0);
+	public final AtomicLong Signature_Bytes = new AtomicLong(0);
+	public final AtomicLong Copy_Count      = new AtomicLong(0);
+	public final AtomicLong Copy_Nanos      = new AtomicLong(0);
+	public final AtomicLong Copy_Bytes      = new AtomicLong(0);
+	public final AtomicLong Skip_Count      = new AtomicLong(0);
+	public final AtomicLong Cache_Hits      = new AtomicLong(0);
+	public final AtomicLong Cache_Misses    = new AtomicLong(0);
+	public final AtomicLong Cache_Evictions = new AtomicLong(0);
+
+	public void Reset()
+	{
+		Update_Count.set(0);
+		Update_Nanos.set(0);
+		Validate_Count.set(0);
+		Validate_Nanos.set(0);
+		Signature_Count.set(0);
+		Signature_Nanos.set(0);
+		Signature_Bytes.set(0);
+		Copy_Count.set(0);
+		Copy_Nanos.set(0);
+		Copy_Bytes.set(0);
+		Skip_Count.set(0);
+		Cache_Hits.set(0);
+		Cache_Misses.set(0);
+		Cache_Evictions.set(0);
+	}
+
+	void AddUpdate(long nanos)
+	{
+		Update_Count.incrementAndGet();
+		Update_Nanos.addAndGet(nanos);
+	}
+
+	void AddValidate(long nanos)
+	{
+		Validate_Count.incrementAndGet();
+		Validate_Nanos.addAndGet(nanos);
+	}
+
+	void AddSignature(long nanos, long bytes)
+	{
+		Signature_Count.incrementAndGet();
+		Signature_Nanos.addAndGet(nanos);
+		Signature_Bytes.addAndGet(bytes);
+	}
+
+	void AddCopy(long nanos, long bytes)
+	{
+		Copy_Count.incrementAndGet();
+		Copy_Nanos.addAndGet(nanos);
+		Copy_Bytes.addAndGet(bytes);
+	}
+
+	void AddSkip()
+	{
+		Skip_Count.incrementAndGet();
+	}
+
+	void AddHit()
+	{
+		Cache_Hits.incrementAndGet();
+	}
+
+	void AddMiss()
+	{
+		Cache_Misses.incrementAndGet();
+	}
+
+	void AddEviction()
+	{
+		Cache_Evictions.incrementAndGet();
+	}
+
+	private static long Rate(long bytes, long nanos)
+	{
+		// bytes per second
+		return (nanos > 0) ? (long) (1.0E9*bytes/nanos) : 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		// copy and signature times are summed over all workers
+		return "update=" + Update_Count.get() + "/" + Update_Nanos.get()/1000000 + "ms" +
+		       " validate=" + Validate_Count.get() + "/" + Validate_Nanos.get()/1000 + "us" +
+		       " signature=" + Signature_Count.get() + "/" + Signature_Bytes.get() + "B/" +
+		       Rate(Signature_Bytes.get(), Signature_Nanos.get()) + "B/s" +
+		       " copy=" + Copy_Count.get() + "/" + Copy_Bytes.get() + "B/" +
+		       Rate(Copy_Bytes.get(), Copy_Nanos.get()) + "B/s" +
+		       " skip=" + Skip_Count.get() +
+		       " cache=" + Cache_Hits.get() + "/" + Cache_Misses.get() + "/" +
+		       Cache_Evictions.get();
+	}
+}
@@ -30,37 +30,15 @@ import android.view.MotionEvent;
 import android.content.Context;
 import android.util.AttributeSet;
 import android.graphics.PixelFormat;
-import android.os.SystemClock;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Condition;
-
-interface A3DRenderer
-{
-	public void CreateContext();
-	public void DestroyContext();
-	public void CreateSurface(SurfaceHolder surface_holder);
-	public void DestroySurface();
-	public void ChangeSurface(int format, int width, int height);
-	public void Resume();
-	public void Pause();
-	public void Draw();
-}
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class A3DSurfaceView extends SurfaceView implements Runnable, SurfaceHolder.Callback
 {
 	private static final String TAG = "A3DSurfaceView";
-	private A3DRenderer Renderer;
 	private SurfaceHolder Surface_Holder;
 	private A3DResource Native_Resources;
-
-	// Render thread state
-	private Thread Render_Thread;
-	private boolean   Stop_Renderer = false;   // Has the renderer stopped? (construct a new renderer to draw again)
-	private boolean   Running_Flag  = false;   // Is the rendering thread paused?
-	private boolean   Surface_Flag  = false;   // Does the rendering thread have a surface?
-	private Lock      Event_Lock    = new ReentrantLock();
-	private Condition Event_Cond    = Event_Lock.newCondition();
+	private A3DRenderLoop Loop;
 
 	/*
 	 * Native interface
@@ -73,45 +51,81 @@ public class A3DSurfaceView extends SurfaceView implements Runnable, SurfaceHold
 	                                float x3, float y3,
 	                                double ts);
 
-	private class A3DEvent
-	{
-		// Wrap the flag so that it may be passed by reference
-		// True indicates that event has occured
-		public boolean Flag = false;
-	}
+	/*
+	 * Batched touch samples in native byte order
+	 * sample:  double ts, int action, int count, pointer[count], pad
+	 * pointer: int id, float x, float y
+	 * Each sample is padded to a multiple of 8 bytes so that
+	 * ts is aligned. Historical samples use ACTION_MOVE and the
+	 * last sample uses the action of the MotionEvent.
+	 */
+	private native void NativeTouchBuffer(ByteBuffer buffer, int samples);
 
-	private class A3DSurfaceChangeEvent extends A3DEvent
-	{
-		public int Format = 0;
-		public int Width  = 0;
-		public int Height = 0;
-	}
+	private volatile boolean Touch_Batching = false;
+	private ByteBuffer       Touch_Buffer   = null;
+
+	// Deferred touch samples are written by the UI thread and
+	// drained by the render thread at the start of each frame
+	private static final int TOUCH_RING_SIZE = 256;
+
+	// Slots kept free of moves for down/up/cancel samples
+	private static final int TOUCH_RING_RESERVE = 8;
 
-	// Events and event data
-	private A3DEvent Pause_Event                        = new A3DEvent();
-	private A3DEvent Resume_Event                       = new A3DEvent();
-	private A3DEvent Stop_Event                         = new A3DEvent();
-	private A3DEvent Surface_Created_Event              = new A3DEvent();
-	private A3DEvent Surface_Destroyed_Event            = new A3DEvent();
-	private A3DSurfaceChangeEvent Surface_Changed_Event = new A3DSurfaceChangeEvent();
+	private volatile A3DTouchRing Touch_Ring  = null;
+	private ByteBuffer            Touch_Drain = null;
+
+	// Deferred touch options, see A3DTouchRing
+	private volatile boolean Touch_Coalescing = false;
+	private volatile double  Touch_Prediction = 0.0;
+
+	// Render modes
+	public static final int RENDER_CONTINUOUSLY = A3DRenderLoop.RENDER_CONTINUOUSLY;
+	public static final int RENDER_WHEN_DIRTY   = A3DRenderLoop.RENDER_WHEN_DIRTY;
+
+	// Time base for touch timestamps
+	private A3DClock Clock;
+
+	// Resolution scaling is disabled by default
+	private volatile A3DResolutionScaler Scaler = null;
+	private volatile float               Surface_Scale = 1.0f;
+	private Runnable Apply_Scale = new Runnable()
+	{
+		public void run()
+		{
+			ApplyScale();
+		}
+	};
 
 	public A3DSurfaceView(A3DRenderer renderer, A3DResource r, Context context, AttributeSet attrs)
 	{
         super(context, attrs);
-		Init(renderer, r);
+		Init(renderer, r, A3DClock.GetDefault(), null);
 	}
 
 	public A3DSurfaceView(A3DRenderer renderer, A3DResource r, Context context)
 	{
 		super(context);
-		Init(renderer, r);
+		Init(renderer, r, A3DClock.GetDefault(), null);
+	}
+
+	public A3DSurfaceView(A3DRenderer renderer, A3DResource r, A3DClock clock, Context context)
+	{
+		super(context);
+		Init(renderer, r, clock, null);
 	}
 
-	private void Init(A3DRenderer renderer, A3DResource r)
+	public A3DSurfaceView(A3DRenderer renderer, A3DResource r, A3DRenderService service, Context context)
+	{
+		super(context);
+		Init(renderer, r, service.GetClock(), service);
+	}
+
+	private void Init(A3DRenderer renderer, A3DResource r, A3DClock clock, A3DRenderService service)
 	{
 		Log.i(TAG, "Init");
 
-		Renderer = renderer;
+		// Time base for touch, pacing and frame timing
+		Clock = clock;
 
 		// null if no native resources used
 		Native_Resources = r;
@@ -120,15 +134,65 @@ public class A3DSurfaceView extends SurfaceView implements Runnable, SurfaceHold
 		// TODO - Was this necessary?
 		setFocusableInTouchMode(true);
 
-		// Start up the rendering thread
-		Render_Thread = new Thread(this);
-		Render_Thread.start();
-
 		// Set up the SurfaceHolder.Callback interface
+		// Callbacks are received on the UI thread after Init
 		Surface_Holder = getHolder();
 		Surface_Holder.addCallback(this);
 		Surface_Holder.setType(SurfaceHolder.SURFACE_TYPE_GPU);
 		Surface_Holder.setFormat(PixelFormat.RGB_565);
+
+		// The render loop calls back into the view on the
+		// render thread
+		Loop = new A3DRenderLoop(renderer, Surface_Holder, clock)
+		{
+			@Override
+			protected void OnStart()
+			{
+				if(Native_Resources != null)
+					Native_Resources.UpdateAsync();
+			}
+
+			@Override
+			protected void OnFinish()
+			{
+				if(Native_Resources != null)
+					Native_Resources.WaitForUpdate();
+			}
+
+			@Override
+			protected void OnCreateSurface()
+			{
+				// Resource extraction overlaps with CreateContext
+				// but must complete before NativeCreate
+				if(Native_Resources != null)
+					Native_Resources.WaitForUpdate();
+			}
+
+			@Override
+			protected void OnFrame()
+			{
+				DrainTouch();
+			}
+
+			@Override
+			protected void OnDraw(long cost)
+			{
+				ScaleFrame(cost);
+			}
+		};
+
+		// Start up the rendering thread or share the service
+		// thread which is unparked in place of our own
+		if(service != null)
+		{
+			service.Register(Loop);
+		}
+		else
+		{
+			Thread render_thread = new Thread(this);
+			Loop.Attach(render_thread);
+			render_thread.start();
+		}
 	}
 
 	/***********************************************************
@@ -138,19 +202,19 @@ public class A3DSurfaceView extends SurfaceView implements Runnable, SurfaceHold
 	public void PauseRenderer()
 	{
 		Log.i(TAG, "PauseRenderer");
-		QueueEventBlocking(Pause_Event);
+		Loop.Pause();
 	}
 
 	public void ResumeRenderer()
 	{
 		Log.i(TAG, "ResumeRenderer");
-		QueueEvent(Resume_Event);
+		Loop.Resume();
 	}
 
 	public void StopRenderer()
 	{
 		Log.i(TAG, "StopRenderer");
-		QueueEventBlocking(Stop_Event);
+		Loop.Stop();
 	}
 
 	/***********************************************************
@@ -160,189 +224,349 @@ public class A3DSurfaceView extends SurfaceView implements Runnable, SurfaceHold
     public void surfaceCreated(SurfaceHolder holder)
 	{
 		Log.i(TAG, "surfaceCreated");
-		QueueEvent(Surface_Created_Event);
+		Loop.SurfaceCreated();
     }
 
     public void surfaceDestroyed(SurfaceHolder holder)
 	{
 		Log.i(TAG, "surfaceDestroyed");
-		QueueEventBlocking(Surface_Destroyed_Event);
+		Loop.SurfaceDestroyed();
     }
 
     public void surfaceChanged(SurfaceHolder holder, int format, int w, int h)
 	{
 		Log.i(TAG, "surfaceChanged " + w + "x" + h);
-		Surface_Changed_Event.Format = format;
-		Surface_Changed_Event.Width  = w;
-		Surface_Changed_Event.Height = h;
-		QueueEvent(Surface_Changed_Event);
+
+		// The scale is derived from the buffer and view sizes so
+		// that it matches the buffer the renderer receives
+		float scale = 1.0f;
+		int   width = getWidth();
+		if((width > 0) && (w < width))
+		{
+			scale = (float) w/(float) width;
+		}
+		Loop.SurfaceChanged(format, w, h, scale);
     }
 
 	/***********************************************************
-	* UI thread queueing interface                             *
+	* Touch interface                                          *
 	***********************************************************/
-	private void QueueEventBlocking(A3DEvent event)
+
+	public void SetTouchBatching(boolean batching)
 	{
-		Event_Lock.lock();
-		try
-		{
-			// Don't handle any more events once stopped
-			// finally automatically unlocks
-			if(Stop_Renderer) return;
+		// Batched touch events use NativeTouchBuffer
+		Touch_Batching = batching;
+	}
 
-			event.Flag = true;
+	public void SetTouchDeferred(boolean deferred)
+	{
+		// Deferred touch events are delivered to NativeTouchBuffer
+		// on the render thread before each Draw. Samples are
+		// dropped when the ring is full.
+		if(deferred == (Touch_Ring != null)) return;
+		Touch_Ring = deferred ? new A3DTouchRing(TOUCH_RING_SIZE) : null;
+	}
 
-			// Wait for the render thread to handle the event
-			while(event.Flag)
-			{
-				Event_Cond.signal();
-				try { Event_Cond.await(); }
-				catch(InterruptedException e) { }
-			}
+	public void SetTouchCoalescing(boolean coalescing)
+	{
+		// Collapse deferred moves to one sample per frame
+		Touch_Coalescing = coalescing;
+	}
+
+	public void SetTouchPrediction(double seconds)
+	{
+		// Extrapolate the last deferred move by seconds past the
+		// start of the frame or 0.0 to disable
+		Touch_Prediction = (seconds > 0.0) ? seconds : 0.0;
+	}
+
+	/***********************************************************
+	* Render mode interface                                    *
+	***********************************************************/
+
+	public void SetRenderMode(int mode)
+	{
+		Loop.SetRenderMode(mode);
+	}
+
+	public int GetRenderMode()
+	{
+		return Loop.GetRenderMode();
+	}
+
+	public void RequestRender()
+	{
+		Loop.RequestRender();
+	}
+
+	/***********************************************************
+	* Frame pacing interface                                   *
+	***********************************************************/
+
+	public void SetFrameRate(float fps)
+	{
+		// 0 draws as fast as eglSwapBuffers allows
+		Loop.SetFrameRate(fps);
+	}
+
+	public void SetIdleFrameRate(float fps, float timeout)
+	{
+		// Drop to fps after timeout seconds without input
+		Loop.SetIdleFrameRate(fps, timeout);
+	}
+
+	/***********************************************************
+	* Resolution scaling interface                             *
+	***********************************************************/
+
+	public void EnableResolutionScaling(float fps, float min_scale,
+	                                    float max_scale, float step)
+	{
+		// Scale the surface buffer so that Draw fits in 1/fps
+		Scaler = new A3DResolutionScaler(fps, min_scale, max_scale, step);
+		Surface_Scale = Scaler.GetScale();
+		ApplyScale();
+	}
+
+	public void DisableResolutionScaling()
+	{
+		Scaler = null;
+		Surface_Scale = 1.0f;
+		ApplyScale();
+	}
+
+	public float GetResolutionScale()
+	{
+		return Surface_Scale;
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh)
+	{
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		// The fixed size follows the layout size
+		if(Surface_Scale < 1.0f) ApplyScale();
+	}
+
+	private void ApplyScale()
+	{
+		// UI thread
+		float scale  = Surface_Scale;
+		int   width  = getWidth();
+		int   height = getHeight();
+		if((scale >= 1.0f) || (width <= 0) || (height <= 0))
+		{
+			Surface_Holder.setSizeFromLayout();
+			return;
 		}
-		finally
+
+		int w = (int) (scale*width + 0.5f);
+		int h = (int) (scale*height + 0.5f);
+		Surface_Holder.setFixedSize((w > 0) ? w : 1, (h > 0) ? h : 1);
+	}
+
+	/***********************************************************
+	* Render thread interface                                  *
+	***********************************************************/
+
+	private void ScaleFrame(long cost)
+	{
+		// The cost includes eglSwapBuffers in Draw
+		A3DResolutionScaler scaler = Scaler;
+		if((scaler != null) && scaler.Sample(cost))
 		{
-			Event_Lock.unlock();
+			Surface_Scale = scaler.GetScale();
+			post(Apply_Scale);
 		}
 	}
 
-	private void QueueEvent(A3DEvent event)
+	public void run()
 	{
-		Event_Lock.lock();
-		try
+		Loop.run();
+	}
+
+	private double getTimestamp(long uptime_ms)
+	{
+		// convert "uptime" timestamp to UTC timestamp
+		return Clock.ToUTC(Clock.Uptime(uptime_ms));
+	}
+
+	private void DrainTouch()
+	{
+		A3DTouchRing ring = Touch_Ring;
+		if(ring == null) return;
+
+		if((Touch_Drain == null) || (Touch_Drain.capacity() < ring.BufferSize()))
 		{
-			// Don't handle any more events once stopped
-			// finally automatically unlocks
-			if(Stop_Renderer) return;
+			Touch_Drain = ByteBuffer.allocateDirect(ring.BufferSize());
+			Touch_Drain.order(ByteOrder.nativeOrder());
+		}
 
-			event.Flag = true;
-			Event_Cond.signal();
+		double present = 0.0;
+		double ahead   = Touch_Prediction;
+		if(ahead > 0.0)
+		{
+			present = Clock.ToUTC(Clock.Now()) + ahead;
 		}
-		finally
+
+		int samples = ring.Drain(Touch_Drain, Touch_Coalescing, present);
+		if(samples > 0)
 		{
-			Event_Lock.unlock();
+			NativeTouchBuffer(Touch_Drain, samples);
 		}
 	}
 
-	/***********************************************************
-	* Render thread interface                                  *
-	***********************************************************/
-
-	private boolean HandleEvents()
+	private boolean TouchDefer(A3DTouchRing ring, MotionEvent event)
 	{
-		boolean needs_signal = false;
+		if(!IsTouchAction(event.getActionMasked())) return false;
 
-		Event_Lock.lock();
 		try
 		{
-			// Receive events until all events have been handled and we are in a running state with an Android surface
-			while(Resume_Event.Flag || Pause_Event.Flag || Stop_Event.Flag ||
-			      Surface_Created_Event.Flag || Surface_Destroyed_Event.Flag || Surface_Changed_Event.Flag ||
-			      !Running_Flag || !Surface_Flag)
+			int count   = event.getPointerCount();
+			int history = event.getHistorySize();
+
+			// Drop history before the event's own sample and drop
+			// moves before the actions which change pointer state
+			int     action = event.getAction();
+			boolean move   = (event.getActionMasked() == MotionEvent.ACTION_MOVE);
+			for(int h = 0; h < history; ++h)
 			{
-				if(DequeueEvent(Surface_Created_Event))
-				{
-					Renderer.CreateContext();
-					Renderer.CreateSurface(Surface_Holder);
-					Surface_Flag = true;
-				}
+				int slot = ring.Claim(getTimestamp(event.getHistoricalEventTime(h)),
+				                      MotionEvent.ACTION_MOVE, count,
+				                      TOUCH_RING_RESERVE + 1);
+				if(slot < 0) break;
 
-				if(DequeueEvent(Surface_Changed_Event))
+				for(int i = 0; i < count; ++i)
 				{
-					Renderer.ChangeSurface(Surface_Changed_Event.Format, Surface_Changed_Event.Width, Surface_Changed_Event.Height);
+					ring.SetPointer(slot, i, event.getPointerId(i),
+					                event.getHistoricalX(i, h),
+					                event.getHistoricalY(i, h));
 				}
+			}
 
-				if(DequeueEvent(Resume_Event))
+			int slot = ring.Claim(getTimestamp(event.getEventTime()),
+			                      action, count,
+			                      move ? TOUCH_RING_RESERVE : 0);
+			if(slot >= 0)
+			{
+				for(int i = 0; i < count; ++i)
 				{
-					Renderer.Resume();
-					Running_Flag = true;
+					ring.SetPointer(slot, i, event.getPointerId(i),
+					                event.getX(i), event.getY(i));
 				}
+			}
+			ring.Publish();
 
-				if(DequeueEvent(Pause_Event))
-				{
-					Renderer.Pause();
-					Running_Flag = false;
-					needs_signal = true;
-				}
+			// The render thread is too far behind to accept a
+			// change in pointer state
+			if((slot < 0) && (move == false))
+			{
+				return false;
+			}
+		}
+		catch(Exception e)
+		{
+			// fail silently
+			return false;
+		}
 
-				if(DequeueEvent(Surface_Destroyed_Event))
-				{
-					Renderer.DestroySurface();
-					Surface_Flag = false;
-					needs_signal = true;
-				}
+		return true;
+	}
 
-				if(DequeueEvent(Stop_Event))
-				{
-					// Make sure we have paused and destroyed the surfaces first
-					Running_Flag = false;
-					if(Surface_Flag)
-					{
-						Renderer.DestroySurface();
-						Surface_Flag = false;
-					}
-					Renderer.DestroyContext();
-					Stop_Renderer = true;
-					needs_signal = true;
-				}
+	private static boolean IsTouchAction(int action)
+	{
+		return (action == MotionEvent.ACTION_DOWN)         ||
+		       (action == MotionEvent.ACTION_UP)           ||
+		       (action == MotionEvent.ACTION_MOVE)         ||
+		       (action == MotionEvent.ACTION_POINTER_DOWN) ||
+		       (action == MotionEvent.ACTION_POINTER_UP)   ||
+		       (action == MotionEvent.ACTION_CANCEL);
+	}
 
-				// Notify UI thread that event was handled for blocking events
-				if(needs_signal) Event_Cond.signal();
+	private boolean TouchBatch(MotionEvent event)
+	{
+		if(!IsTouchAction(event.getActionMasked())) return false;
 
-				// Exit the render thread when Stop_Event is received
-				// Lock will be released by "finally" block before returning
-				if(Stop_Renderer) return false;
+		try
+		{
+			int count   = event.getPointerCount();
+			int history = event.getHistorySize();
+			int sample  = A3DTouchRing.SampleSize(count);
+			int size    = (history + 1)*sample;
+
+			// The buffer is reused and only grows when a larger
+			// event arrives
+			if((Touch_Buffer == null) || (Touch_Buffer.capacity() < size))
+			{
+				int capacity = (Touch_Buffer == null) ? 0 : 2*Touch_Buffer.capacity();
+				Touch_Buffer = ByteBuffer.allocateDirect((size > capacity) ? size : capacity);
+				Touch_Buffer.order(ByteOrder.nativeOrder());
+			}
 
-				// Wait for events until we are "running" and have an Android surface
-				if(!Running_Flag || !Surface_Flag)
+			ByteBuffer buffer = Touch_Buffer;
+			buffer.clear();
+			for(int h = 0; h < history; ++h)
+			{
+				int base = h*sample;
+				buffer.putDouble(base, getTimestamp(event.getHistoricalEventTime(h)));
+				buffer.putInt(base + 8, MotionEvent.ACTION_MOVE);
+				buffer.putInt(base + 12, count);
+				for(int i = 0; i < count; ++i)
 				{
-					try { Event_Cond.await(); }
-					catch(InterruptedException e) { }
+					int p = base + A3DTouchRing.SAMPLE_SIZE + i*A3DTouchRing.POINTER_SIZE;
+					buffer.putInt(p, event.getPointerId(i));
+					buffer.putFloat(p + 4, event.getHistoricalX(i, h));
+					buffer.putFloat(p + 8, event.getHistoricalY(i, h));
 				}
 			}
+
+			int base = history*sample;
+			buffer.putDouble(base, getTimestamp(event.getEventTime()));
+			buffer.putInt(base + 8, event.getAction());
+			buffer.putInt(base + 12, count);
+			for(int i = 0; i < count; ++i)
+			{
+				int p = base + A3DTouchRing.SAMPLE_SIZE + i*A3DTouchRing.POINTER_SIZE;
+				buffer.putInt(p, event.getPointerId(i));
+				buffer.putFloat(p + 4, event.getX(i));
+				buffer.putFloat(p + 8, event.getY(i));
+			}
+
+			NativeTouchBuffer(buffer, history + 1);
 		}
-		finally
+		catch(Exception e)
 		{
-			Event_Lock.unlock();
+			// fail silently
+			return false;
 		}
 
-		// Render next frame
 		return true;
 	}
 
-	private boolean DequeueEvent(A3DEvent event)
+	@Override
+	public boolean onTouchEvent(MotionEvent event)
 	{
-		// No need for locking since DequeueEvent is only performed
-		// by HandleEvents function which already performs locking
-		if(event.Flag)
-		{
-			event.Flag = false;
-			return true;
-		}
+		boolean handled = TouchEvent(event);
 
-		return false;
-	}
+		// Wake the render thread once the sample is visible to it
+		if(handled) Loop.Input();
 
-	public void run()
-	{
-		if(Native_Resources != null)
-			Native_Resources.Update();
-
-		while(HandleEvents())
-			Renderer.Draw();
+		return handled;
 	}
 
-	private static double getTimestamp(double t0)
+	private boolean TouchEvent(MotionEvent event)
 	{
-		// convert "uptime" timestamp to UTC timestamp
-		double now = (double) System.currentTimeMillis();
-		double t1  = (double) SystemClock.uptimeMillis();
-		return (now + t0 - t1)/1000.0;
-	}
+		A3DTouchRing ring = Touch_Ring;
+		if(ring != null)
+		{
+			return TouchDefer(ring, event);
+		}
+		else if(Touch_Batching)
+		{
+			return TouchBatch(event);
+		}
 
-	@Override
-	public boolean onTouchEvent(MotionEvent event)
-	{
 		// check for supported actions
 		int action = event.getAction();
 		if((action == MotionEvent.ACTION_DOWN) ||
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2009-2010 Jeff Boody
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.jeffboody.a3d;
+
+import android.view.MotionEvent;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Fixed size single-producer/single-consumer ring of touch
+ * samples. The UI thread writes samples and the render thread
+ * drains them into a direct buffer for NativeTouchBuffer.
+ *
+ * sample:  double ts, int action, int count, pointer[count], pad
+ * pointer: int id, float x, float y
+ *
+ * Each sample is padded to a multiple of 8 bytes so that ts
+ * is aligned.
+ *
+ * When coalescing, consecutive moves are collapsed to the last
+ * one so that each frame sees at most one move per pointer
+ * between down/up events. When predicting, the final move is
+ * extrapolated to the present time using the velocity since
+ * the previous move.
+ */
+class A3DTouchRing
+{
+	public static final int SAMPLE_SIZE  = 16;
+	public static final int POINTER_SIZE = 12;
+	public static final int MAX_POINTERS = 16;
+
+	// limit extrapolation to avoid overshoot on stale samples
+	public static final double MAX_PREDICTION = 0.05;
+
+	private final int      Mask;
+	private final double[] Ts;
+	private final int[]    Action;
+	private final int[]    Count;
+	private final int[]    Id;
+	private final float[]  X;
+	private final float[]  Y;
+
+	// Tail is published by the producer and Head by the consumer
+	private final AtomicLong Head = new AtomicLong(0);
+	private final AtomicLong Tail = new AtomicLong(0);
+
+	// producer only
+	private long Write_Pos = 0;
+	private long Dropped   = 0;
+
+	// consumer only, the last move seen by Drain
+	private boolean  Last_Valid = false;
+	private double   Last_Ts    = 0.0;
+	private int      Last_Count = 0;
+	private int[]    Last_Id    = new int[MAX_POINTERS];
+	private float[]  Last_X     = new float[MAX_POINTERS];
+	private float[]  Last_Y     = new float[MAX_POINTERS];
+
+	A3DTouchRing(int capacity)
+	{
+		// round capacity up to a power of two
+		int size = 1;
+		while(size < capacity)
+		{
+			size <<= 1;
+		}
+
+		Mask   = size - 1;
+		Ts     = new double[size];
+		Action = new int[size];
+		Count  = new int[size];
+		Id     = new int[size*MAX_POINTERS];
+		X      = new float[size*MAX_POINTERS];
+		Y      = new float[size*MAX_POINTERS];
+	}
+
+	public static int SampleSize(int count)
+	{
+		int size = SAMPLE_SIZE + count*POINTER_SIZE;
+		return (size + 7) & ~7;
+	}
+
+	public int Capacity()
+	{
+		return Mask + 1;
+	}
+
+	/*
+	 * Producer interface
+	 * Returns the slot for the next sample or -1 if the ring
+	 * is full. Samples are visible to the consumer after Publish.
+	 */
+	public int Claim(double ts, int action, int count)
+	{
+		return Claim(ts, action, count, 0);
+	}
+
+	/*
+	 * Claims a slot only if more than reserve slots are free.
+	 * Moves are claimed with a reserve so that the samples
+	 * which change the pointer state are never dropped in
+	 * favor of moves.
+	 */
+	public int Claim(double ts, int action, int count, int reserve)
+	{
+		if(Write_Pos - Head.get() + reserve > Mask)
+		{
+			++Dropped;
+			return -1;
+		}
+
+		int slot = (int) (Write_Pos & Mask);
+		Ts[slot]     = ts;
+		Action[slot] = action;
+		Count[slot]  = (count > MAX_POINTERS) ? MAX_POINTERS : count;
+		++Write_Pos;
+		return slot;
+	}
+
+	public void SetPointer(int slot, int i, int id, float x, float y)
+	{
+		if(i < MAX_POINTERS)
+		{
+			int p = slot*MAX_POINTERS + i;
+			Id[p] = id;
+			X[p]  = x;
+			Y[p]  = y;
+		}
+	}
+
+	public void Publish()
+	{
+		Tail.lazySet(Write_Pos);
+	}
+
+	public long Dropped()
+	{
+		return Dropped;
+	}
+
+	/*
+	 * Consumer interface
+	 * Packs the published samples into dst and returns the
+	 * number of samples. dst must hold BufferSize() bytes.
+	 */
+	public int BufferSize()
+	{
+		return Capacity()*SampleSize(MAX_POINTERS);
+	}
+
+	public int Drain(ByteBuffer dst)
+	{
+		return Drain(dst, false, 0.0);
+	}
+
+	/*
+	 * present is the UTC time in seconds that the frame is
+	 * expected to be displayed or 0.0 to disable prediction
+	 */
+	public int Drain(ByteBuffer dst, boolean coalesce, double present)
+	{
+		long head = Head.get();
+		long tail = Tail.get();
+		if(head == tail)
+		{
+			return 0;
+		}
+
+		dst.clear();
+		int base    = 0;
+		int samples = 0;
+		for(long pos = head; pos < tail; ++pos)
+		{
+			int     slot  = (int) (pos & Mask);
+			int     count = Count[slot];
+			boolean move  = (Action[slot] & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_MOVE;
+			boolean last  = (pos + 1 == tail);
+
+			// skip a move that is followed by another move
+			if(coalesce && move && !last)
+			{
+				int next = (int) ((pos + 1) & Mask);
+				if((Action[next] & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_MOVE)
+				{
+					Remember(slot);
+					continue;
+				}
+			}
+
+			double ts = Ts[slot];
+			double h  = 0.0;
+			double dt = ts - Last_Ts;
+			if(move && last && Last_Valid && (present > ts) && (dt > 0.0))
+			{
+				h = present - ts;
+				if(h > MAX_PREDICTION) h = MAX_PREDICTION;
+			}
+
+			dst.putDouble(base, ts + h);
+			dst.putInt(base + 8, Action[slot]);
+			dst.putInt(base + 12, count);
+			for(int i = 0; i < count; ++i)
+			{
+				int   p = base + SAMPLE_SIZE + i*POINTER_SIZE;
+				int   q = slot*MAX_POINTERS + i;
+				float x = X[q];
+				float y = Y[q];
+				int   j = (h > 0.0) ? FindLast(Id[q], i) : -1;
+				if(j >= 0)
+				{
+					x += (float) ((x - Last_X[j])*h/dt);
+					y += (float) ((y - Last_Y[j])*h/dt);
+				}
+				dst.putInt(p, Id[q]);
+				dst.putFloat(p + 4, x);
+				dst.putFloat(p + 8, y);
+			}
+			base += SampleSize(count);
+			++samples;
+
+			if(move)
+			{
+				Remember(slot);
+			}
+			else
+			{
+				Last_Valid = false;
+			}
+		}
+
+		// release the slots to the producer
+		Head.lazySet(tail);
+		return samples;
+	}
+
+	private void Remember(int slot)
+	{
+		int count = Count[slot];
+		for(int i = 0; i < count; ++i)
+		{
+			int q = slot*MAX_POINTERS + i;
+			Last_Id[i] = Id[q];
+			Last_X[i]  = X[q];
+			Last_Y[i]  = Y[q];
+		}
+		Last_Ts    = Ts[slot];
+		Last_Count = count;
+		Last_Valid = true;
+	}
+
+	private int FindLast(int id, int hint)
+	{
+		if((hint < Last_Count) && (Last_Id[hint] == id))
+		{
+			return hint;
+		}
+
+		for(int j = 0; j < Last_Count; ++j)
+		{
+			if(Last_Id[j] == id) return j;
+		}
+		return -1;
+	}
+}